@@ -0,0 +1,40 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.graphics.Bitmap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding cover art from the disk cache down to the notification large icon size, with Robolectric's native graphics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+public class ROILArtworkBenchmark {
+    private ROILArtworkCache artworkCache;
+    private File artworkFile;
+
+    @Setup
+    public void setUp() {
+        artworkCache = ROILArtworkCache.getInstance(ROILBenchmarkEnvironment.getService());
+        artworkFile = ROILBenchmarkEnvironment.getArtworkFile();
+    }
+
+    @Benchmark
+    public Bitmap decode() {
+        return artworkCache.decode(artworkFile);
+    }
+}
@@ -0,0 +1,28 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import java.io.File;
+
+/**
+ * What the benchmarks run against, set up by {@link ROILBenchmarks} on the Robolectric main thread before JMH starts.
+ * The benchmark threads can't set it up themselves, since creating a service waits on the main looper.
+ */
+final class ROILBenchmarkEnvironment {
+    private static File artworkFile;
+    private static ROILTestPlaybackService service;
+
+    private ROILBenchmarkEnvironment() {
+    }
+
+    static synchronized File getArtworkFile() {
+        return artworkFile;
+    }
+
+    static synchronized ROILTestPlaybackService getService() {
+        return service;
+    }
+
+    static synchronized void set(ROILTestPlaybackService service, File artworkFile) {
+        ROILBenchmarkEnvironment.artworkFile = artworkFile;
+        ROILBenchmarkEnvironment.service = service;
+    }
+}
@@ -0,0 +1,95 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the JMH benchmarks inside the Robolectric sandbox. JMH can't fork here, since a forked JVM has no sandbox, so
+ * the benchmarks run in this JVM on JMH's own threads while the main thread waits for them.
+ */
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@RunWith(RobolectricTestRunner.class)
+public class ROILBenchmarks {
+    private static final int ARTWORK_SIZE = 1024;
+    private static final String RESULTS_PROPERTY_NAME = "roil.benchmark.results";
+
+    private ROILPlaybackServiceHarness harness;
+
+    @Before
+    public void setUp() throws IOException {
+        ROILTestPlaybackService.resetSettings();
+        harness = new ROILPlaybackServiceHarness(0);
+        harness.execute(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE,
+                ROILPlaybackServiceHarness.setMediaSourceParams(ROILPlaybackServiceHarness.mediaUri(0)));
+        harness.execute(ROILBackgroundMediaPlayer.COMMAND_PLAY, new Bundle());
+
+        ROILTestPlaybackService service = harness.getService();
+        ROILArtworkCache.getInstance(service);
+        ROILBenchmarkEnvironment.set(service, writeArtwork(new File(service.getCacheDir(), "artwork.png")));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        ROILBenchmarkEnvironment.set(null, null);
+        harness.destroy();
+    }
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        File results = new File(System.getProperty(RESULTS_PROPERTY_NAME, "build/reports/jmh/results.json"));
+        results.getParentFile().mkdirs();
+
+        Options options = new OptionsBuilder()
+                .include(getClass().getPackage().getName() + ".*Benchmark")
+                .forks(0)
+                .result(results.getPath())
+                .resultFormat(ResultFormatType.JSON)
+                .build();
+        Collection<RunResult> runResults = new Runner(options).run();
+
+        assertEquals(4, runResults.size());
+    }
+
+    /**
+     * Writes a gradient the size of a typical cover, so the decoder has real image data to downsample.
+     */
+    private static File writeArtwork(File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(ARTWORK_SIZE, ARTWORK_SIZE, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, ARTWORK_SIZE, ARTWORK_SIZE, Color.RED, Color.BLUE,
+                Shader.TileMode.CLAMP));
+        new Canvas(bitmap).drawRect(0, 0, ARTWORK_SIZE, ARTWORK_SIZE, paint);
+
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+        }
+        bitmap.recycle();
+
+        return file;
+    }
+}
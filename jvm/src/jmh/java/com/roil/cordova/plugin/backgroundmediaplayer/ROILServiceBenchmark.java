@@ -0,0 +1,93 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The playback service hot paths, on a service that is playing with its notification posted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+public class ROILServiceBenchmark {
+    private final Bundle[] metadataBatches = new Bundle[2];
+
+    private int metadataBatchIndex = 0;
+    private ROILTestPlaybackService service;
+
+    @Setup
+    public void setUp() {
+        service = ROILBenchmarkEnvironment.getService();
+        for (int i = 0; i < metadataBatches.length; i++) {
+            metadataBatches[i] = createMetadataBatch("Title " + i);
+        }
+    }
+
+    /**
+     * A notification whose fields didn't change, as on a buffering update or a repeated state, is skipped.
+     */
+    @Benchmark
+    public void buildNotificationUnchanged() {
+        service.buildNotification();
+    }
+
+    @Benchmark
+    public void setPlaybackState() {
+        service.setPlaybackState(PlaybackStateCompat.STATE_PLAYING, 1.0f);
+    }
+
+    /**
+     * Reads a batch holding a metadata command back from a parcel as onCustomAction receives it, then runs the
+     * command. The title alternates, so the metadata and the notification are published again each time.
+     */
+    @Benchmark
+    public void setSessionMetadataBatch(Blackhole blackhole) {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(metadataBatches[metadataBatchIndex]);
+        parcel.setDataPosition(0);
+        Bundle extras = parcel.readBundle(getClass().getClassLoader());
+        parcel.recycle();
+        metadataBatchIndex = (metadataBatchIndex + 1) % metadataBatches.length;
+
+        List<Bundle> commands = extras.getParcelableArrayList(ROILCommandQueue.BATCH_COMMANDS_PARAM_NAME);
+        for (Bundle command : commands) {
+            blackhole.consume(service.executeCommand(command.getString(ROILCommandQueue.COMMAND_NAME_PARAM_NAME),
+                    command));
+        }
+    }
+
+    private static Bundle createMetadataBatch(String title) {
+        Bundle command = new Bundle();
+        command.putString(ROILCommandQueue.COMMAND_NAME_PARAM_NAME,
+                ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME);
+        command.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ALBUM_PARAM_NAME, "Album");
+        command.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTIST_PARAM_NAME, "Artist");
+        command.putLong(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_DURATION_PARAM_NAME,
+                ROILPlaybackServiceHarness.MEDIA_DURATION_MS);
+        command.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME, title);
+
+        ArrayList<Bundle> commands = new ArrayList<>(1);
+        commands.add(command);
+        Bundle batch = new Bundle();
+        batch.putParcelableArrayList(ROILCommandQueue.BATCH_COMMANDS_PARAM_NAME, commands);
+        return batch;
+    }
+}
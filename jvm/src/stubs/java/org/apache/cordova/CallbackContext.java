@@ -0,0 +1,55 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Stand-in for the Cordova framework class. Results go to {@link #sendPluginResult}, which tests override to capture
+ * them, and a callback is finished by its first result that doesn't keep it.
+ */
+public class CallbackContext {
+    private final String callbackId;
+    private boolean finished = false;
+
+    public CallbackContext(String callbackId) {
+        this.callbackId = callbackId;
+    }
+
+    public void error(JSONObject message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    public void error(String message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    public String getCallbackId() {
+        return callbackId;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void sendPluginResult(PluginResult pluginResult) {
+        synchronized (this) {
+            finished = !pluginResult.getKeepCallback();
+        }
+    }
+
+    public void success() {
+        sendPluginResult(new PluginResult(PluginResult.Status.OK));
+    }
+
+    public void success(JSONArray message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+    }
+
+    public void success(JSONObject message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+    }
+
+    public void success(String message) {
+        sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+    }
+}
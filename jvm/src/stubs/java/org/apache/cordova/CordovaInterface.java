@@ -0,0 +1,11 @@
+package org.apache.cordova;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the Cordova framework interface, only what the plugin uses. The framework isn't published to Maven
+ * Central, so the JVM harness compiles the plugin against these instead.
+ */
+public interface CordovaInterface {
+    Context getContext();
+}
@@ -0,0 +1,35 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Stand-in for the Cordova framework class, only what the plugin uses.
+ */
+public class CordovaPlugin {
+    public CordovaInterface cordova;
+
+    /**
+     * Called by the plugin manager once the plugin is created, as the framework does before any action.
+     */
+    public final void privateInitialize(CordovaInterface cordova) {
+        this.cordova = cordova;
+        pluginInitialize();
+    }
+
+    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        return false;
+    }
+
+    public void onDestroy() {
+    }
+
+    public void onPause(boolean multitasking) {
+    }
+
+    public void onResume(boolean multitasking) {
+    }
+
+    protected void pluginInitialize() {
+    }
+}
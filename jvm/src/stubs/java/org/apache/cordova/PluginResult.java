@@ -0,0 +1,52 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Stand-in for the Cordova framework class, which keeps the message as the framework would send it to JS.
+ */
+public class PluginResult {
+    private boolean keepCallback = false;
+    private final String message;
+    private final int status;
+
+    public enum Status {
+        NO_RESULT,
+        OK,
+        ERROR
+    }
+
+    public PluginResult(Status status) {
+        this(status, (String) null);
+    }
+
+    public PluginResult(Status status, String message) {
+        this.status = status.ordinal();
+        this.message = message;
+    }
+
+    public PluginResult(Status status, JSONArray message) {
+        this(status, message.toString());
+    }
+
+    public PluginResult(Status status, JSONObject message) {
+        this(status, message.toString());
+    }
+
+    public boolean getKeepCallback() {
+        return keepCallback;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setKeepCallback(boolean keepCallback) {
+        this.keepCallback = keepCallback;
+    }
+}
@@ -0,0 +1,111 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.support.v4.media.MediaBrowserCompat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trees pushed from JS that would corrupt the shared browse tree, which are rejected before anything changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILBrowseTreeTest {
+    private ROILBrowseTree browseTree;
+
+    @Before
+    public void setUp() throws JSONException {
+        // The tree is shared in-process and outlives the application of an earlier test
+        ReflectionHelpers.setStaticField(ROILBrowseTree.class, "instance", null);
+        browseTree = ROILBrowseTree.getInstance();
+        assertTrue(browseTree.setChildren(ROILBrowseTree.ROOT_ID, new JSONArray()
+                .put(node("albums", node("album", node("track"))))));
+    }
+
+    @Test
+    public void duplicateSiblingIdsAreRejected() {
+        assertThrows(JSONException.class, () -> browseTree.setChildren("album", new JSONArray()
+                .put(node("track1"))
+                .put(node("track1"))));
+
+        assertUnchanged();
+    }
+
+    @Test
+    public void rootIdIsRejected() {
+        assertThrows(JSONException.class, () -> browseTree.setChildren("album", new JSONArray()
+                .put(node(ROILBrowseTree.ROOT_ID))));
+
+        assertUnchanged();
+    }
+
+    @Test
+    public void ancestorIdIsRejected() {
+        assertThrows(JSONException.class, () -> browseTree.setChildren("album", new JSONArray()
+                .put(node("albums"))));
+        assertThrows(JSONException.class, () -> browseTree.setChildren("album", new JSONArray()
+                .put(node("disc", node("disc")))));
+
+        assertUnchanged();
+    }
+
+    /**
+     * The same id elsewhere than among the node's ancestors is a move, the latest node with it wins.
+     */
+    @Test
+    public void sameIdInAnotherBranchMovesTheNode() throws JSONException {
+        assertTrue(browseTree.setChildren(ROILBrowseTree.ROOT_ID, new JSONArray()
+                .put(node("albums", node("album", node("track"))))
+                .put(node("favourites", node("track")))));
+
+        assertEquals(0, browseTree.getChildCount("album"));
+        assertEquals(List.of("track"), getChildIds("favourites"));
+    }
+
+    private void assertUnchanged() {
+        assertEquals(List.of("albums"), getChildIds(ROILBrowseTree.ROOT_ID));
+        assertEquals(List.of("album"), getChildIds("albums"));
+        assertEquals(List.of("track"), getChildIds("album"));
+        assertNotNull(browseTree.getNode("track"));
+    }
+
+    private List<String> getChildIds(String parentId) {
+        List<String> childIds = new ArrayList<>();
+        for (MediaBrowserCompat.MediaItem mediaItem : browseTree.getChildren(parentId, -1, 0)) {
+            childIds.add(mediaItem.getMediaId());
+        }
+
+        return childIds;
+    }
+
+    private static JSONObject node(String id, JSONObject... children) {
+        try {
+            JSONObject node = new JSONObject().put("id", id).put("title", id);
+            if (children.length > 0) {
+                JSONArray childArray = new JSONArray();
+                for (JSONObject child : children) {
+                    childArray.put(child);
+                }
+                node.put("children", childArray);
+            } else {
+                node.put("src", "file:///sdcard/Music/" + id + ".mp3");
+            }
+            return node;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
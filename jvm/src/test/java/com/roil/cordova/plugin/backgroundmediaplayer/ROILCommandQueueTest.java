@@ -0,0 +1,85 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The batches the plugin's command queue sends, where consecutive plays merge without losing a seek.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILCommandQueueTest {
+    private final List<Bundle> batches = new ArrayList<>();
+
+    private ROILCommandQueue commandQueue;
+
+    @Before
+    public void setUp() {
+        MediaBrowserCompat mediaBrowser = mock(MediaBrowserCompat.class);
+        when(mediaBrowser.isConnected()).thenReturn(true);
+        doAnswer(invocation -> batches.add(invocation.getArgument(1)))
+                .when(mediaBrowser).sendCustomAction(anyString(), any(), any());
+        commandQueue = new ROILCommandQueue(mediaBrowser);
+    }
+
+    @Test
+    public void playWithoutAPositionKeepsThePendingSeek() {
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(10000, 1.0f), null);
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(null, 1.5f), null);
+
+        Bundle command = flushSingleCommand();
+        assertEquals(10000, command.getInt(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME));
+        assertEquals(1.5f, command.getFloat(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME),
+                0.0f);
+    }
+
+    @Test
+    public void lastPositionWins() {
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(10000, 1.0f), null);
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(20000, 1.0f), null);
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(null, 1.0f), null);
+
+        assertEquals(20000, flushSingleCommand().getInt(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME));
+    }
+
+    @Test
+    public void playWithoutAPositionStaysWithoutOne() {
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(null, 1.0f), null);
+        commandQueue.enqueue(ROILBackgroundMediaPlayer.COMMAND_PLAY, playParams(null, 1.0f), null);
+
+        assertFalse(flushSingleCommand().containsKey(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME));
+    }
+
+    private Bundle flushSingleCommand() {
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, batches.size());
+        List<Bundle> commands = batches.get(0).getParcelableArrayList(ROILCommandQueue.BATCH_COMMANDS_PARAM_NAME);
+        assertEquals(1, commands.size());
+        return commands.get(0);
+    }
+
+    private static Bundle playParams(Integer position, float playbackSpeed) {
+        Bundle params = new Bundle();
+        if (position != null) {
+            params.putInt(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME, position);
+        }
+        params.putFloat(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME, playbackSpeed);
+        return params;
+    }
+}
@@ -0,0 +1,105 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.net.Uri;
+import android.os.Looper;
+
+import androidx.media3.exoplayer.ExoPlayer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The player contract on a real ExoPlayer, playing a silent WAV file so that no decoder is needed.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILExoPlayerEngineContractTest extends ROILPlayerContractTest {
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS = 5000;
+    private static final int BUFFER_FOR_PLAYBACK_MS = 2500;
+    private static final int MAX_BUFFER_MS = 50000;
+    private static final int MIN_BUFFER_MS = 15000;
+    private static final int SAMPLE_RATE = 44100;
+
+    @Override
+    ROILPlayer.Factory createFactory() {
+        return new ROILExoPlayerEngine.Factory(RuntimeEnvironment.getApplication(), Looper.getMainLooper(),
+                MIN_BUFFER_MS, MAX_BUFFER_MS, BUFFER_FOR_PLAYBACK_MS, BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
+    }
+
+    /**
+     * A chained next player plays from the ExoPlayer of the current one, which buffers it ahead as a playlist item, and
+     * gets one of its own again once unchained.
+     */
+    @Test
+    public void chainedPlayerSharesTheExoPlayer() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        ROILPlayer currentPlayer = factory.create(listener);
+        ROILPlayer nextPlayer = factory.create(listener);
+        try {
+            currentPlayer.prepareAsync(createMediaUri());
+            nextPlayer.prepareAsync(createMediaUri());
+            runUntil(() -> listener.count(RecordingListener.PREPARED) == 2, "both players to prepare");
+
+            currentPlayer.setNextPlayer(nextPlayer);
+            ExoPlayer exoPlayer = getExoPlayer(currentPlayer);
+            assertSame(exoPlayer, getExoPlayer(nextPlayer));
+            assertEquals(2, exoPlayer.getMediaItemCount());
+            assertFalse(nextPlayer.isPlaying());
+
+            currentPlayer.setNextPlayer(null);
+            assertEquals(1, exoPlayer.getMediaItemCount());
+            assertEquals(MEDIA_DURATION_MS, nextPlayer.getDuration());
+
+            nextPlayer.start();
+            assertNotSame(exoPlayer, getExoPlayer(nextPlayer));
+            assertTrue(nextPlayer.isPlaying());
+        } finally {
+            currentPlayer.release();
+            nextPlayer.release();
+        }
+    }
+
+    @Override
+    Uri createMediaUri() throws IOException {
+        File file = new File(RuntimeEnvironment.getApplication().getCacheDir(), "silence.wav");
+        int blockAlign = BITS_PER_SAMPLE / 8;
+        int dataSize = (int) (SAMPLE_RATE * MEDIA_DURATION_MS / 1000) * blockAlign;
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file))) {
+            outputStream.writeBytes("RIFF");
+            outputStream.writeInt(Integer.reverseBytes(36 + dataSize));
+            outputStream.writeBytes("WAVE");
+            outputStream.writeBytes("fmt ");
+            outputStream.writeInt(Integer.reverseBytes(16));
+            // PCM, mono
+            outputStream.writeShort(Short.reverseBytes((short) 1));
+            outputStream.writeShort(Short.reverseBytes((short) 1));
+            outputStream.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+            outputStream.writeInt(Integer.reverseBytes(SAMPLE_RATE * blockAlign));
+            outputStream.writeShort(Short.reverseBytes((short) blockAlign));
+            outputStream.writeShort(Short.reverseBytes((short) BITS_PER_SAMPLE));
+            outputStream.writeBytes("data");
+            outputStream.writeInt(Integer.reverseBytes(dataSize));
+            outputStream.write(new byte[dataSize]);
+        }
+
+        return Uri.fromFile(file);
+    }
+
+    private static ExoPlayer getExoPlayer(ROILPlayer player) {
+        return ReflectionHelpers.getField(ReflectionHelpers.getField(player, "playlist"), "exoPlayer");
+    }
+}
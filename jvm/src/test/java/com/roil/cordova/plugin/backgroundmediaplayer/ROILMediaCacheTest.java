@@ -0,0 +1,186 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The media cache against a local HTTP server that honours Range and If-Range the way CDNs do, with the cache reopened
+ * from its directory as it is in a new process.
+ */
+public class ROILMediaCacheTest {
+    private static final int CONTENT_SIZE = 512 * 1024;
+    private static final int PREFIX_SIZE = 128 * 1024;
+    private static final int READ_SIZE = 4096;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile byte[] content;
+    private volatile String eTag;
+    private volatile String lastIfRange;
+    private volatile String lastRange;
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        setContent(1, "\"v1\"");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/track.mp3", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/track.mp3";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void cachedPrefixIsServedWithoutTheNetwork() throws IOException {
+        long cachedLength = cachePrefix();
+        int requestsBefore = requests.get();
+
+        byte[] read = readWithNewCache(0, (int) Math.min(cachedLength, PREFIX_SIZE));
+
+        assertArrayEquals(Arrays.copyOfRange(content, 0, read.length), read);
+        assertEquals(requestsBefore, requests.get());
+    }
+
+    @Test
+    public void continuingFromTheNetworkSendsTheValidator() throws IOException {
+        long cachedLength = cachePrefix();
+
+        byte[] read = readWithNewCache(cachedLength, READ_SIZE);
+
+        assertArrayEquals(Arrays.copyOfRange(content, (int) cachedLength, (int) cachedLength + READ_SIZE), read);
+        assertEquals("bytes=" + cachedLength + "-", lastRange);
+        assertEquals("\"v1\"", lastIfRange);
+    }
+
+    @Test
+    public void changedRemoteContentReplacesThePrefix() throws IOException {
+        long cachedLength = cachePrefix();
+        setContent(2, "\"v2\"");
+
+        ROILMediaCache cache = new ROILMediaCache(temporaryFolder.getRoot());
+        ROILMediaCache.Entry entry = cache.open(url);
+        try {
+            byte[] continued = read(entry, cachedLength, READ_SIZE);
+            byte[] prefix = read(entry, 0, READ_SIZE);
+
+            assertEquals("\"v1\"", lastIfRange);
+            assertArrayEquals(Arrays.copyOfRange(content, (int) cachedLength, (int) cachedLength + READ_SIZE),
+                    continued);
+            assertArrayEquals(Arrays.copyOfRange(content, 0, READ_SIZE), prefix);
+        } finally {
+            cache.close(entry);
+        }
+
+        // The new validator is kept for the next process
+        cache = new ROILMediaCache(temporaryFolder.getRoot());
+        entry = cache.open(url);
+        try {
+            long newCachedLength = entry.getCachedLength();
+            byte[] reopened = read(entry, newCachedLength, READ_SIZE);
+
+            assertEquals("\"v2\"", lastIfRange);
+            assertArrayEquals(Arrays.copyOfRange(content, (int) newCachedLength, (int) newCachedLength + READ_SIZE),
+                    reopened);
+        } finally {
+            cache.close(entry);
+        }
+    }
+
+    private long cachePrefix() throws IOException {
+        ROILMediaCache cache = new ROILMediaCache(temporaryFolder.getRoot());
+        ROILMediaCache.Entry entry = cache.open(url);
+        try {
+            entry.cachePrefix(PREFIX_SIZE);
+            assertEquals(CONTENT_SIZE, entry.getSize());
+            return entry.getCachedLength();
+        } finally {
+            cache.close(entry);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        byte[] body = content;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        lastRange = range;
+        lastIfRange = ifRange;
+
+        int start = 0;
+        if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+        }
+        exchange.getResponseHeaders().set("ETag", eTag);
+        if (start > 0) {
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+            exchange.sendResponseHeaders(206, body.length - start);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+        }
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body, start, body.length - start);
+        } catch (IOException e) {
+            // The cache disconnects once it has read what it needs
+        }
+    }
+
+    private static byte[] read(ROILMediaCache.Entry entry, long position, int size) throws IOException {
+        byte[] buffer = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            int read = entry.readAt(position + offset, buffer, offset, size - offset);
+            if (read <= 0) {
+                break;
+            }
+            offset += read;
+        }
+
+        return Arrays.copyOf(buffer, offset);
+    }
+
+    private byte[] readWithNewCache(long position, int size) throws IOException {
+        ROILMediaCache cache = new ROILMediaCache(temporaryFolder.getRoot());
+        ROILMediaCache.Entry entry = cache.open(url);
+        try {
+            return read(entry, position, size);
+        } finally {
+            cache.close(entry);
+        }
+    }
+
+    /**
+     * Each version has the same length, so only the validator tells them apart.
+     */
+    private void setContent(int version, String eTag) {
+        byte[] content = new byte[CONTENT_SIZE];
+        new Random(version).nextBytes(content);
+        this.content = content;
+        this.eTag = eTag;
+    }
+}
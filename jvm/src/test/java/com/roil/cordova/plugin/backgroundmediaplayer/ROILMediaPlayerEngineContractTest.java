@@ -0,0 +1,35 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.net.Uri;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowMediaPlayer;
+
+/**
+ * The player contract on Robolectric's MediaPlayer, which fails the test on any call the platform player would reject
+ * in its current state.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILMediaPlayerEngineContractTest extends ROILPlayerContractTest {
+    private static final int PLAYER_POOL_SIZE = 2;
+    private static final int PREPARATION_DELAY_MS = 100;
+
+    @Override
+    ROILPlayer.Factory createFactory() {
+        ShadowMediaPlayer.setMediaInfoProvider(
+                dataSource -> new ShadowMediaPlayer.MediaInfo((int) MEDIA_DURATION_MS, PREPARATION_DELAY_MS)
+        );
+        ShadowMediaPlayer.setCreateListener((mediaPlayer, shadowMediaPlayer) ->
+                shadowMediaPlayer.setInvalidStateBehavior(ShadowMediaPlayer.InvalidStateBehavior.ASSERT)
+        );
+
+        return new ROILMediaPlayerEngine.Factory(RuntimeEnvironment.getApplication(), PLAYER_POOL_SIZE);
+    }
+
+    @Override
+    Uri createMediaUri() {
+        return ROILPlaybackServiceHarness.mediaUri(0);
+    }
+}
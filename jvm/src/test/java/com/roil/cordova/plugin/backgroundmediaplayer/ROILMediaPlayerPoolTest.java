@@ -0,0 +1,113 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.media.MediaPlayer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.ShadowMediaPlayer.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.getShadow;
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.mediaUri;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Bursts of players created and released the way source changes do, which must reuse pooled MediaPlayer instances
+ * instead of creating one each time.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILMediaPlayerPoolTest {
+    private static final int BURST_SIZE = 50;
+    private static final int POOL_SIZE = 2;
+
+    private final List<MediaPlayer> createdMediaPlayers = new ArrayList<>();
+
+    private ROILMediaPlayerEngine.Factory factory;
+    private ROILPlayer.Listener listener;
+
+    @Before
+    public void setUp() {
+        ShadowMediaPlayer.setMediaInfoProvider(dataSource -> new ShadowMediaPlayer.MediaInfo(
+                ROILPlaybackServiceHarness.MEDIA_DURATION_MS, 0
+        ));
+        ShadowMediaPlayer.setCreateListener((mediaPlayer, shadowMediaPlayer) -> {
+            shadowMediaPlayer.setInvalidStateBehavior(ShadowMediaPlayer.InvalidStateBehavior.ASSERT);
+            createdMediaPlayers.add(mediaPlayer);
+        });
+
+        factory = new ROILMediaPlayerEngine.Factory(RuntimeEnvironment.getApplication(), POOL_SIZE);
+        listener = mock(ROILPlayer.Listener.class);
+    }
+
+    @Test
+    public void sourceChangeBurstReusesOnePlayer() throws IOException {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            ROILPlayer player = factory.create(listener);
+            player.prepareAsync(mediaUri(i));
+            player.release();
+        }
+
+        assertEquals(1, factory.getCreatedCount());
+        assertEquals(1, createdMediaPlayers.size());
+    }
+
+    /**
+     * Queues prepare the next player while the current one still plays, so two players are in use at the handover.
+     */
+    @Test
+    public void overlappingBurstReusesTwoPlayers() throws IOException {
+        ROILPlayer currentPlayer = factory.create(listener);
+        currentPlayer.prepareAsync(mediaUri(0));
+        for (int i = 1; i < BURST_SIZE; i++) {
+            ROILPlayer nextPlayer = factory.create(listener);
+            nextPlayer.prepareAsync(mediaUri(i));
+            currentPlayer.release();
+            currentPlayer = nextPlayer;
+        }
+        currentPlayer.release();
+
+        assertEquals(2, factory.getCreatedCount());
+        assertEquals(2, createdMediaPlayers.size());
+    }
+
+    @Test
+    public void burstBeyondThePoolSizeReleasesTheExtraPlayers() throws IOException {
+        int burstSize = POOL_SIZE + 3;
+        List<ROILPlayer> players = new ArrayList<>();
+        for (int i = 0; i < burstSize; i++) {
+            ROILPlayer player = factory.create(listener);
+            player.prepareAsync(mediaUri(i));
+            players.add(player);
+        }
+        for (ROILPlayer player : players) {
+            player.release();
+        }
+
+        assertEquals(burstSize, factory.getCreatedCount());
+        assertEquals(POOL_SIZE, countMediaPlayers(State.IDLE));
+        assertEquals(burstSize - POOL_SIZE, countMediaPlayers(State.END));
+
+        factory.clear();
+
+        assertEquals(burstSize, countMediaPlayers(State.END));
+    }
+
+    private int countMediaPlayers(State state) {
+        int count = 0;
+        for (MediaPlayer mediaPlayer : createdMediaPlayers) {
+            if (getShadow(mediaPlayer).getState() == state) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,74 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.os.Bundle;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.mediaUri;
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.setMediaSourceParams;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The time to first audio the service records, which must only time plays that actually start the player.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILPlaybackMetricsTest {
+    private static final int PLAYED_MS = 1000;
+    private static final int PREPARATION_DELAY_MS = 200;
+
+    private ROILPlaybackServiceHarness harness;
+    private ROILPlaybackMetrics metrics;
+
+    @Before
+    public void setUp() {
+        // The metrics outlive the application of an earlier test
+        ReflectionHelpers.setStaticField(ROILPlaybackMetrics.class, "instance", null);
+        ROILTestPlaybackService.resetSettings();
+        harness = new ROILPlaybackServiceHarness(PREPARATION_DELAY_MS);
+        metrics = ROILPlaybackMetrics.getInstance(harness.getService());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        harness.destroy();
+    }
+
+    @Test
+    public void playWhilePlayingRecordsNoTimeToFirstAudio() throws JSONException {
+        assertNull(harness.execute(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE, setMediaSourceParams(mediaUri(0)))
+                .getString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME));
+        play();
+        harness.advance(PREPARATION_DELAY_MS);
+        assertEquals(1, getTimeToFirstAudioCount());
+
+        harness.advance(PLAYED_MS);
+        play();
+
+        assertEquals(1, getTimeToFirstAudioCount());
+        assertEquals(0L, ((long[]) ReflectionHelpers.getField(metrics, "pendingStarts"))[
+                ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO]);
+    }
+
+    private void execute(String name) {
+        assertNull(harness.execute(name, new Bundle()).getString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME));
+    }
+
+    private int getTimeToFirstAudioCount() throws JSONException {
+        return metrics.toJSON().getJSONObject("timeToFirstAudio").getInt("count");
+    }
+
+    /**
+     * Restarts the span before the command, as the plugin does for every play from JS.
+     */
+    private void play() {
+        metrics.restart(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+        execute(ROILBackgroundMediaPlayer.COMMAND_PLAY);
+    }
+}
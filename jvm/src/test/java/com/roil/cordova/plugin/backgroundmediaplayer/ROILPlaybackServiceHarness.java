@@ -0,0 +1,163 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.robolectric.Robolectric;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs a {@link ROILTestPlaybackService} on Robolectric, with its commands executed on the playback thread as the
+ * batch custom action does. Robolectric's MediaPlayer stands in for the platform one: every source prepares after
+ * the given delay, and a call the real player would reject in its current state throws, failing the test.
+ */
+class ROILPlaybackServiceHarness {
+    static final int MEDIA_DURATION_MS = 180000;
+
+    private static final long PLAYBACK_THREAD_QUIT_TIMEOUT_MS = 5000;
+
+    private final List<MediaPlayer> createdMediaPlayers = new CopyOnWriteArrayList<>();
+    private final ServiceController<ROILTestPlaybackService> controller;
+    private final Handler playbackHandler;
+    private final ROILTestPlaybackService service;
+
+    private boolean destroyed = false;
+
+    ROILPlaybackServiceHarness(int preparationDelayMs) {
+        ShadowMediaPlayer.setMediaInfoProvider(
+                dataSource -> new ShadowMediaPlayer.MediaInfo(MEDIA_DURATION_MS, preparationDelayMs)
+        );
+        ShadowMediaPlayer.setCreateListener((mediaPlayer, shadowMediaPlayer) -> {
+            shadowMediaPlayer.setInvalidStateBehavior(ShadowMediaPlayer.InvalidStateBehavior.ASSERT);
+            createdMediaPlayers.add(mediaPlayer);
+        });
+
+        controller = Robolectric.buildService(ROILTestPlaybackService.class).create();
+        service = controller.get();
+        playbackHandler = ReflectionHelpers.getField(service, "playbackHandler");
+        idle();
+    }
+
+    static Uri mediaUri(int index) {
+        return Uri.parse("file:///sdcard/Music/track" + index + ".mp3");
+    }
+
+    static Bundle setMediaSourceParams(Uri uri) {
+        Bundle params = new Bundle();
+        params.putParcelable(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE_URI_PARAM_NAME, uri);
+        return params;
+    }
+
+    static Bundle setQueueParams(int itemCount, int startIndex) {
+        ArrayList<Bundle> items = new ArrayList<>(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            Bundle item = new Bundle();
+            item.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_ARTIST_PARAM_NAME, "Artist " + i);
+            item.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_SRC_PARAM_NAME, mediaUri(i).toString());
+            item.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_TITLE_PARAM_NAME, "Title " + i);
+            items.add(item);
+        }
+
+        Bundle params = new Bundle();
+        params.putParcelableArrayList(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEMS_PARAM_NAME, items);
+        params.putInt(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_START_INDEX_PARAM_NAME, startIndex);
+        return params;
+    }
+
+    /**
+     * Runs the clock forward on the playback thread, delivering the player callbacks due by then.
+     */
+    void advance(long milliseconds) {
+        shadowOf(playbackHandler.getLooper()).idleFor(Duration.ofMillis(milliseconds));
+    }
+
+    /**
+     * Destroys the service, once, and waits for its playback thread to release the players and quit.
+     */
+    void destroy() throws InterruptedException {
+        if (destroyed) {
+            return;
+        }
+
+        destroyed = true;
+        controller.destroy();
+        playbackHandler.getLooper().getThread().join(PLAYBACK_THREAD_QUIT_TIMEOUT_MS);
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Runs the command on the playback thread, without running the clock, and returns its result.
+     */
+    Bundle execute(String name, Bundle params) {
+        Bundle[] result = new Bundle[1];
+        run(() -> result[0] = service.executeCommand(name, params));
+        return result[0];
+    }
+
+    /**
+     * @return every MediaPlayer the engine created, whether it is in use, kept for reuse or released
+     */
+    List<MediaPlayer> getCreatedMediaPlayers() {
+        return createdMediaPlayers;
+    }
+
+    /**
+     * @return the MediaPlayers in one of the states, whatever their owner
+     */
+    List<MediaPlayer> getMediaPlayers(ShadowMediaPlayer.State... states) {
+        List<ShadowMediaPlayer.State> stateList = Arrays.asList(states);
+        List<MediaPlayer> mediaPlayers = new ArrayList<>();
+        for (MediaPlayer mediaPlayer : createdMediaPlayers) {
+            if (stateList.contains(getShadow(mediaPlayer).getState())) {
+                mediaPlayers.add(mediaPlayer);
+            }
+        }
+
+        return mediaPlayers;
+    }
+
+    /**
+     * @return the playback state last published on the media session, as a controller reads it
+     */
+    PlaybackStateCompat getPlaybackState() {
+        MediaSessionCompat mediaSession = ReflectionHelpers.getField(service, "mediaSession");
+        return mediaSession.getController().getPlaybackState();
+    }
+
+    ROILTestPlaybackService getService() {
+        return service;
+    }
+
+    static ShadowMediaPlayer getShadow(MediaPlayer mediaPlayer) {
+        return Shadow.extract(mediaPlayer);
+    }
+
+    /**
+     * Runs what is due on the playback thread, then on the main thread.
+     */
+    void idle() {
+        shadowOf(playbackHandler.getLooper()).idle();
+        ShadowLooper.idleMainLooper();
+    }
+
+    void run(Runnable runnable) {
+        playbackHandler.post(runnable);
+        shadowOf(playbackHandler.getLooper()).idle();
+    }
+}
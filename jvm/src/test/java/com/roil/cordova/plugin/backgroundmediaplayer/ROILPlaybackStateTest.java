@@ -0,0 +1,116 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.os.Bundle;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.IOException;
+
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.mediaUri;
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.setMediaSourceParams;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The playback state the service publishes on its media session, which the plugin extrapolates the position from
+ * between transitions.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILPlaybackStateTest {
+    private static final int PLAYED_MS = 1000;
+    private static final int PREPARATION_DELAY_MS = 200;
+
+    private ROILPlaybackServiceHarness harness;
+
+    @Before
+    public void setUp() {
+        ROILTestPlaybackService.resetSettings();
+        harness = new ROILPlaybackServiceHarness(PREPARATION_DELAY_MS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        harness.destroy();
+    }
+
+    @Test
+    public void playPublishesAPlayingState() {
+        setMediaSource();
+        execute(ROILBackgroundMediaPlayer.COMMAND_PLAY);
+
+        PlaybackStateCompat playbackState = harness.getPlaybackState();
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, playbackState.getState());
+        assertEquals(1.0f, playbackState.getPlaybackSpeed(), 0.0f);
+    }
+
+    /**
+     * Pause from JS goes through onStop, and the position read afterwards must not keep moving.
+     */
+    @Test
+    public void pauseStopsThePositionAtThePausedPosition() {
+        setMediaSource();
+        execute(ROILBackgroundMediaPlayer.COMMAND_PLAY);
+        harness.advance(PLAYED_MS);
+
+        Bundle pauseResult = execute(ROILBackgroundMediaPlayer.COMMAND_PAUSE);
+        PlaybackStateCompat playbackState = harness.getPlaybackState();
+        long pausedPosition = ROILBackgroundMediaPlayer.getExtrapolatedPosition(playbackState);
+        harness.advance(PLAYED_MS);
+
+        assertEquals(PlaybackStateCompat.STATE_PAUSED, playbackState.getState());
+        assertEquals(0.0f, playbackState.getPlaybackSpeed(), 0.0f);
+        assertEquals(pauseResult.getDouble(ROILBackgroundMediaPlayer.COMMAND_PAUSE_POSITION_PARAM_NAME) * 1000,
+                pausedPosition, 0.0);
+        assertEquals(pausedPosition, ROILBackgroundMediaPlayer.getExtrapolatedPosition(harness.getPlaybackState()));
+    }
+
+    @Test
+    public void prepareFailurePublishesAnErrorState() {
+        ShadowMediaPlayer.addException(DataSource.toDataSource(mediaUri(0).toString()),
+                new IOException("Unable to open the media source"));
+
+        setMediaSource();
+
+        PlaybackStateCompat playbackState = harness.getPlaybackState();
+        assertEquals(PlaybackStateCompat.STATE_ERROR, playbackState.getState());
+        assertEquals("Unable to open the media source", playbackState.getErrorMessage().toString());
+    }
+
+    /**
+     * Media buttons and controllers can pause or stop the session before any media source was set.
+     */
+    @Test
+    public void pauseAndStopWithoutAMediaSourceDoNothing() {
+        MediaSessionCompat.Callback mediaSessionCallback =
+                ReflectionHelpers.getField(harness.getService(), "mediaSessionCallback");
+
+        harness.run(mediaSessionCallback::onPause);
+        harness.run(mediaSessionCallback::onStop);
+
+        // Nothing was prepared, so no paused state is published either
+        PlaybackStateCompat playbackState = harness.getPlaybackState();
+        assertTrue(playbackState == null || playbackState.getState() == PlaybackStateCompat.STATE_NONE);
+    }
+
+    private Bundle execute(String name) {
+        Bundle result = harness.execute(name, new Bundle());
+        assertNull(result.getString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME));
+        return result;
+    }
+
+    private void setMediaSource() {
+        assertNull(harness.execute(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE, setMediaSourceParams(mediaUri(0)))
+                .getString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME));
+        harness.advance(PREPARATION_DELAY_MS);
+    }
+}
@@ -0,0 +1,217 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.net.Uri;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The behaviour of {@link ROILPlayer} the playback service relies on, whatever the engine. Each engine runs these
+ * against a local media source of {@link #MEDIA_DURATION_MS}, with the player created on the main thread standing in
+ * for the playback thread.
+ */
+public abstract class ROILPlayerContractTest {
+    static final long MEDIA_DURATION_MS = 2000;
+
+    private static final long IDLE_STEP_MS = 10;
+    private static final long QUIET_PERIOD_MS = 500;
+    private static final long SEEK_POSITION_MS = 1000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final RecordingListener listener = new RecordingListener();
+
+    ROILPlayer.Factory factory;
+    private ROILPlayer player;
+
+    abstract ROILPlayer.Factory createFactory();
+
+    abstract Uri createMediaUri() throws IOException;
+
+    @Before
+    public void setUpPlayer() {
+        factory = createFactory();
+        player = factory.create(listener);
+    }
+
+    @After
+    public void tearDownPlayer() {
+        if (player != null) {
+            player.release();
+        }
+        factory.clear();
+    }
+
+    @Test
+    public void prepareCallsBackOnceOnThePlayerThread() throws IOException {
+        prepare();
+        runFor(QUIET_PERIOD_MS);
+
+        assertEquals(1, listener.count(RecordingListener.PREPARED));
+        assertEquals(0, listener.count(RecordingListener.ERROR));
+        assertTrue(listener.calledBackOnMainThread());
+        assertEquals(MEDIA_DURATION_MS, player.getDuration());
+        assertFalse(player.isPlaying());
+    }
+
+    @Test
+    public void startAndPauseUpdateIsPlaying() throws IOException {
+        prepare();
+
+        player.start();
+        assertTrue(player.isPlaying());
+
+        player.pause();
+        assertFalse(player.isPlaying());
+
+        player.start();
+        player.stop();
+        assertFalse(player.isPlaying());
+    }
+
+    @Test
+    public void seekCallsBackWithTheNewPosition() throws IOException {
+        prepare();
+
+        player.seekTo(SEEK_POSITION_MS);
+        runUntil(() -> listener.count(RecordingListener.SEEK_COMPLETE) > 0, "the seek to complete");
+
+        assertEquals(SEEK_POSITION_MS, player.getCurrentPosition());
+        assertTrue(listener.calledBackOnMainThread());
+    }
+
+    @Test
+    public void playbackSpeedChangesWhilePlaying() throws IOException {
+        prepare();
+        player.start();
+
+        player.setPlaybackSpeed(1.5f);
+
+        assertEquals(1.5f, player.getPlaybackSpeed(), 0.0f);
+        assertTrue(player.isPlaying());
+    }
+
+    @Test
+    public void releasedPlayerDoesNotCallBack() throws IOException {
+        player.prepareAsync(createMediaUri());
+        player.release();
+        player = null;
+        List<String> eventsBeforeRelease = listener.getEvents();
+
+        runFor(QUIET_PERIOD_MS);
+
+        assertEquals(eventsBeforeRelease, listener.getEvents());
+    }
+
+    private void prepare() throws IOException {
+        player.prepareAsync(createMediaUri());
+        runUntil(() -> listener.count(RecordingListener.PREPARED) > 0 || listener.count(RecordingListener.ERROR) > 0,
+                "the player to prepare");
+        assertEquals(0, listener.count(RecordingListener.ERROR));
+    }
+
+    /**
+     * Runs the main looper, moving the clock in small steps so engines with threads of their own keep up with it.
+     */
+    private static void runFor(long milliseconds) {
+        for (long elapsed = 0; elapsed < milliseconds; elapsed += IDLE_STEP_MS) {
+            ShadowLooper.idleMainLooper(IDLE_STEP_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void runUntil(BooleanSupplier condition, String description) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + description);
+            }
+            ShadowLooper.idleMainLooper(IDLE_STEP_MS, TimeUnit.MILLISECONDS);
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Records the callbacks in order, and whether all of them came on the main thread the player was created on.
+     */
+    static class RecordingListener implements ROILPlayer.Listener {
+        static final String BUFFERING_CHANGED = "bufferingChanged";
+        static final String BUFFERING_UPDATE = "bufferingUpdate";
+        static final String COMPLETION = "completion";
+        static final String ERROR = "error";
+        static final String PREPARED = "prepared";
+        static final String SEEK_COMPLETE = "seekComplete";
+
+        private final List<String> events = new ArrayList<>();
+
+        private boolean calledBackOnMainThread = true;
+
+        synchronized boolean calledBackOnMainThread() {
+            return calledBackOnMainThread;
+        }
+
+        synchronized int count(String event) {
+            int count = 0;
+            for (String recordedEvent : events) {
+                if (recordedEvent.equals(event)) {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<>(events);
+        }
+
+        @Override
+        public void onBufferingChanged(ROILPlayer player, boolean buffering) {
+            record(BUFFERING_CHANGED);
+        }
+
+        @Override
+        public void onBufferingUpdate(ROILPlayer player, int percent) {
+            record(BUFFERING_UPDATE);
+        }
+
+        @Override
+        public void onCompletion(ROILPlayer player) {
+            record(COMPLETION);
+        }
+
+        @Override
+        public void onError(ROILPlayer player, String message) {
+            record(ERROR);
+        }
+
+        @Override
+        public void onPrepared(ROILPlayer player) {
+            record(PREPARED);
+        }
+
+        @Override
+        public void onSeekComplete(ROILPlayer player) {
+            record(SEEK_COMPLETE);
+        }
+
+        private synchronized void record(String event) {
+            events.add(event);
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                calledBackOnMainThread = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.mediaUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * How the sessions share the player limit with the main player, depending on the players the main player holds.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILPlayerSessionsTest {
+    private static final int MAX_PLAYERS = 4;
+
+    private final List<ROILPlayer> players = new ArrayList<>();
+
+    private int primaryPlayerCount = 0;
+    private ROILPlayerSessions playerSessions;
+
+    @Before
+    public void setUp() {
+        ROILPlayer.Factory playerFactory = mock(ROILPlayer.Factory.class);
+        when(playerFactory.create(any())).thenAnswer(invocation -> {
+            ROILPlayer player = mock(ROILPlayer.class);
+            players.add(player);
+            return player;
+        });
+
+        playerSessions = new ROILPlayerSessions(playerFactory, MAX_PLAYERS, new ROILPlayerSessions.Listener() {
+            @Override
+            public int getPrimaryPlayerCount() {
+                return primaryPlayerCount;
+            }
+
+            @Override
+            public void onSessionCompletion(String id) {
+                //
+            }
+        });
+    }
+
+    @Test
+    public void sessionsUseThePlayersOfAMainPlayerWithoutMedia() {
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            assertTrue(playSession("session" + i));
+        }
+
+        assertFalse(playSession("session" + MAX_PLAYERS));
+    }
+
+    @Test
+    public void sessionsLeaveThePlayersTheMainPlayerHolds() {
+        primaryPlayerCount = 2;
+        for (int i = 0; i < MAX_PLAYERS - primaryPlayerCount; i++) {
+            assertTrue(playSession("session" + i));
+        }
+
+        assertFalse(playSession("session" + MAX_PLAYERS));
+    }
+
+    @Test
+    public void mainPlayerTakesThePlayerOfAnIdleSession() {
+        assertTrue(playerSessions.setSource("idle", mediaUri(0), 0));
+        for (int i = 1; i < MAX_PLAYERS; i++) {
+            assertTrue(playSession("session" + i));
+        }
+
+        playerSessions.reservePrimaryPlayer();
+
+        verify(players.get(0)).release();
+        assertFalse(playerSessions.play("idle", -1));
+        for (int i = 1; i < MAX_PLAYERS; i++) {
+            verify(players.get(i), never()).release();
+        }
+    }
+
+    @Test
+    public void mainPlayerLeavesPlayingSessionsAlone() {
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            assertTrue(playSession("session" + i));
+        }
+
+        playerSessions.reservePrimaryPlayer();
+
+        assertEquals(MAX_PLAYERS, players.size());
+        for (ROILPlayer player : players) {
+            verify(player, never()).release();
+        }
+    }
+
+    private boolean playSession(String id) {
+        return playerSessions.setSource(id, mediaUri(0), 0) && playerSessions.play(id, -1);
+    }
+}
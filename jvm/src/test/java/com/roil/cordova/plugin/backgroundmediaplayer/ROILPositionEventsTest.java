@@ -0,0 +1,132 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockedConstruction;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mockConstruction;
+import static org.mockito.Mockito.when;
+
+/**
+ * Position events pushed to a subscriber, driven by the playback states the controller receives from the session.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILPositionEventsTest {
+    private static final long EVENT_INTERVAL_MS = 100;
+    private static final long PLAYED_MS = 1000;
+
+    private final List<JSONObject> events = new ArrayList<>();
+
+    private MediaBrowserCompat.ConnectionCallback connectionCallback;
+    private MediaControllerCompat.Callback controllerCallback;
+    private MockedConstruction<MediaBrowserCompat> mediaBrowsers;
+    private MockedConstruction<MediaControllerCompat> mediaControllers;
+    private PlaybackStateCompat playbackState;
+    private ROILBackgroundMediaPlayer plugin;
+
+    @Before
+    public void setUp() throws JSONException {
+        mediaBrowsers = mockConstruction(MediaBrowserCompat.class, (mediaBrowser, context) -> {
+            when(mediaBrowser.isConnected()).thenReturn(true);
+            connectionCallback = (MediaBrowserCompat.ConnectionCallback) context.arguments().get(2);
+        });
+        mediaControllers = mockConstruction(MediaControllerCompat.class, (mediaController, context) -> {
+            when(mediaController.getPlaybackState()).thenAnswer(invocation -> playbackState);
+            doAnswer(invocation -> controllerCallback = invocation.getArgument(0))
+                    .when(mediaController).registerCallback(any(), any());
+        });
+
+        plugin = new ROILBackgroundMediaPlayer();
+        plugin.privateInitialize(RuntimeEnvironment::getApplication);
+        connectionCallback.onConnected();
+
+        plugin.execute("subscribe", new JSONArray().put(new JSONObject().put("interval", EVENT_INTERVAL_MS)),
+                new CallbackContext("subscribe") {
+                    @Override
+                    public void sendPluginResult(PluginResult pluginResult) {
+                        super.sendPluginResult(pluginResult);
+                        if (pluginResult.getMessage() != null) {
+                            try {
+                                events.add(new JSONObject(pluginResult.getMessage()));
+                            } catch (JSONException e) {
+                                throw new AssertionError(e);
+                            }
+                        }
+                    }
+                });
+        ShadowLooper.idleMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        plugin.onDestroy();
+        mediaControllers.close();
+        mediaBrowsers.close();
+    }
+
+    @Test
+    public void playingStateEmitsPositionEvents() throws JSONException {
+        publish(PlaybackStateCompat.STATE_PLAYING, 0, 1.0f);
+        ShadowLooper.idleMainLooper(PLAYED_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(countPositionEvents() >= PLAYED_MS / EVENT_INTERVAL_MS - 1);
+    }
+
+    @Test
+    public void pausedStateStopsPositionEvents() throws JSONException {
+        publish(PlaybackStateCompat.STATE_PLAYING, 0, 1.0f);
+        ShadowLooper.idleMainLooper(PLAYED_MS, TimeUnit.MILLISECONDS);
+        publish(PlaybackStateCompat.STATE_PAUSED, PLAYED_MS, 0.0f);
+        int positionEventCount = countPositionEvents();
+
+        ShadowLooper.idleMainLooper(PLAYED_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(positionEventCount, countPositionEvents());
+        JSONObject lastEvent = events.get(events.size() - 1);
+        assertEquals("state", lastEvent.getString("type"));
+        assertEquals("paused", lastEvent.getString("state"));
+    }
+
+    private int countPositionEvents() throws JSONException {
+        int count = 0;
+        for (JSONObject event : events) {
+            if ("position".equals(event.getString("type"))) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Publishes the state the way the session does, which the controller then delivers on the main looper.
+     */
+    private void publish(int state, long position, float playbackSpeed) {
+        playbackState = new PlaybackStateCompat.Builder()
+                .setState(state, position, playbackSpeed)
+                .build();
+        controllerCallback.onPlaybackStateChanged(playbackState);
+    }
+}
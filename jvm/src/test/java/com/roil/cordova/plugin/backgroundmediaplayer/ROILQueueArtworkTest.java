@@ -0,0 +1,115 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Artwork of queue items the plugin didn't preload, which the service loads itself when the item becomes current.
+ */
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@RunWith(RobolectricTestRunner.class)
+public class ROILQueueArtworkTest {
+    private static final int ARTWORK_LOAD_TIMEOUT_MS = 5000;
+    private static final int ARTWORK_SIZE = 64;
+    private static final int QUEUE_SIZE = 30;
+
+    private ROILPlaybackServiceHarness harness;
+
+    @Before
+    public void setUp() {
+        // The artwork cache outlives the application of an earlier test, along with its disk cache directory
+        ReflectionHelpers.setStaticField(ROILArtworkCache.class, "instance", null);
+        ROILTestPlaybackService.resetSettings();
+        harness = new ROILPlaybackServiceHarness(0);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        harness.destroy();
+    }
+
+    @Test
+    public void artworkMissingFromTheCacheIsPublishedOnceLoaded() throws IOException, InterruptedException {
+        int lastIndex = QUEUE_SIZE - 1;
+        Bundle params = ROILPlaybackServiceHarness.setQueueParams(QUEUE_SIZE, lastIndex - 1);
+        ArrayList<Bundle> items = params.getParcelableArrayList(
+                ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEMS_PARAM_NAME);
+        File cacheDir = harness.getService().getCacheDir();
+        for (int i = 0; i < items.size(); i++) {
+            items.get(i).putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_IMAGE_URL_PARAM_NAME,
+                    Uri.fromFile(writeArtwork(new File(cacheDir, "artwork" + i + ".png"))).toString());
+        }
+        harness.execute(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ACTION_NAME, params);
+        awaitMetadataWithArtwork();
+
+        assertNull(harness.execute(ROILBackgroundMediaPlayer.COMMAND_SKIP_TO_NEXT, new Bundle())
+                .getString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME));
+
+        String artworkKey = items.get(lastIndex)
+                .getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_IMAGE_URL_PARAM_NAME);
+        MediaMetadataCompat metadata = awaitMetadataWithArtwork(artworkKey);
+        assertEquals(artworkKey, metadata.getString(MediaMetadataCompat.METADATA_KEY_ART_URI));
+        assertEquals("Title " + lastIndex, metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+        assertNotNull(ROILArtworkCache.getInstance(harness.getService()).getCached(artworkKey));
+    }
+
+    private MediaMetadataCompat awaitMetadataWithArtwork() throws InterruptedException {
+        return awaitMetadataWithArtwork(null);
+    }
+
+    /**
+     * Runs the playback thread, where the loaded artwork is published, until the session metadata carries a bitmap,
+     * for the artwork key if there is one.
+     */
+    private MediaMetadataCompat awaitMetadataWithArtwork(String artworkKey) throws InterruptedException {
+        MediaSessionCompat mediaSession = ReflectionHelpers.getField(harness.getService(), "mediaSession");
+        long deadline = System.currentTimeMillis() + ARTWORK_LOAD_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            harness.idle();
+            MediaMetadataCompat metadata = mediaSession.getController().getMetadata();
+            if (metadata != null && metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ART) != null &&
+                    (artworkKey == null ||
+                            artworkKey.equals(metadata.getString(MediaMetadataCompat.METADATA_KEY_ART_URI)))) {
+                return metadata;
+            }
+            Thread.sleep(10);
+        }
+
+        fail("The artwork was never published");
+        return null;
+    }
+
+    private static File writeArtwork(File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(ARTWORK_SIZE, ARTWORK_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+        }
+        bitmap.recycle();
+
+        return file;
+    }
+}
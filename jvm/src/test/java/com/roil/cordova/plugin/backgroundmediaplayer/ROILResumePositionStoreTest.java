@@ -0,0 +1,74 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The resume positions file, read back by a new store as it is in a new process.
+ */
+public class ROILResumePositionStoreTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void loadKeepsTheFileOrder() throws ExecutionException, InterruptedException {
+        File file = new File(temporaryFolder.getRoot(), "positions");
+        ROILResumePositionStore store = new ROILResumePositionStore(file);
+        store.put("a", 1000);
+        store.put("b", 2000);
+        store.put("c", 3000);
+        store.flush();
+        awaitWrites(store);
+
+        ROILResumePositionStore loadedStore = new ROILResumePositionStore(file);
+        loadedStore.put("recent", 4000);
+        loadedStore.load();
+
+        assertEquals(Arrays.asList("a", "b", "c", "recent"), getUris(loadedStore));
+        assertEquals(2000, loadedStore.get("b"));
+    }
+
+    @Test
+    public void failedWriteIsRetriedByTheNextFlush() throws ExecutionException, InterruptedException {
+        File file = new File(temporaryFolder.getRoot(), "positions");
+        // A directory in the way of the file makes the rename fail
+        assertTrue(new File(file, "blocker").mkdirs());
+        ROILResumePositionStore store = new ROILResumePositionStore(file);
+        store.put("a", 1000);
+        store.flush();
+        awaitWrites(store);
+
+        assertTrue(new File(file, "blocker").delete());
+        assertTrue(file.delete());
+        store.flush();
+        awaitWrites(store);
+
+        ROILResumePositionStore loadedStore = new ROILResumePositionStore(file);
+        loadedStore.load();
+        assertEquals(1000, loadedStore.get("a"));
+    }
+
+    private static void awaitWrites(ROILResumePositionStore store) throws ExecutionException, InterruptedException {
+        ExecutorService writer = ReflectionHelpers.getField(store, "writer");
+        writer.submit(() -> { }).get();
+    }
+
+    private static ArrayList<String> getUris(ROILResumePositionStore store) {
+        Map<String, Long> positions = ReflectionHelpers.getField(store, "positions");
+        synchronized (store) {
+            return new ArrayList<>(positions.keySet());
+        }
+    }
+}
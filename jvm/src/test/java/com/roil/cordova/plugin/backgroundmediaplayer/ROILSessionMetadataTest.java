@@ -0,0 +1,189 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockedConstruction;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mockConstruction;
+import static org.mockito.Mockito.when;
+
+/**
+ * The session metadata, as the plugin sends it to the playback service and as the service publishes it. The artwork
+ * is decoded on both sides and only its cache key crosses, so a batch never carries a Bitmap. The service publishes the
+ * key along with the bitmap, downsampled to the notification large icon size.
+ */
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@RunWith(RobolectricTestRunner.class)
+public class ROILSessionMetadataTest {
+    private static final int ARTWORK_SIZE = 512;
+    private static final long ARTWORK_LOAD_TIMEOUT_MS = 5000;
+
+    private final List<Bundle> batches = new CopyOnWriteArrayList<>();
+
+    private MockedConstruction<MediaBrowserCompat> mediaBrowsers;
+    private ROILBackgroundMediaPlayer plugin;
+
+    @Before
+    public void setUp() {
+        // The artwork cache outlives the application of an earlier test, along with its disk cache directory
+        ReflectionHelpers.setStaticField(ROILArtworkCache.class, "instance", null);
+        mediaBrowsers = mockConstruction(MediaBrowserCompat.class, (mediaBrowser, context) -> {
+            when(mediaBrowser.isConnected()).thenReturn(true);
+            doAnswer(invocation -> batches.add(invocation.getArgument(1)))
+                    .when(mediaBrowser).sendCustomAction(anyString(), any(), any());
+        });
+
+        plugin = new ROILBackgroundMediaPlayer();
+        plugin.privateInitialize(RuntimeEnvironment::getApplication);
+    }
+
+    @After
+    public void tearDown() {
+        plugin.onDestroy();
+        mediaBrowsers.close();
+    }
+
+    @Test
+    public void metadataWithArtworkOnlySendsTheArtworkKey() throws IOException, InterruptedException, JSONException {
+        String imageUrl = Uri.fromFile(writeArtwork()).toString();
+        JSONObject metadata = new JSONObject()
+                .put("artist", "Artist")
+                .put("imageUrl", imageUrl)
+                .put("title", "Title");
+        plugin.execute("setMetadata", new JSONArray().put(metadata), new CallbackContext("setMetadata"));
+
+        Bundle sessionMetadata = awaitSessionMetadataWithArtwork();
+        assertEquals(imageUrl, sessionMetadata.getString(
+                ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTWORK_KEY_PARAM_NAME));
+        assertNotNull(ROILArtworkCache.getInstance(RuntimeEnvironment.getApplication()).getCached(imageUrl));
+
+        assertFalse(batches.isEmpty());
+        for (Bundle batch : batches) {
+            assertNoBitmap(batch);
+        }
+    }
+
+    @Test
+    public void publishedMetadataCarriesTheKeyAndTheDownsampledArtwork() throws IOException, InterruptedException {
+        String imageUrl = Uri.fromFile(writeArtwork()).toString();
+        ROILTestPlaybackService.resetSettings();
+        ROILPlaybackServiceHarness harness = new ROILPlaybackServiceHarness(0);
+        try {
+            ROILArtworkCache.getInstance(harness.getService()).get(imageUrl);
+            Bundle params = new Bundle();
+            params.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTIST_PARAM_NAME, "Artist");
+            params.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTWORK_KEY_PARAM_NAME,
+                    imageUrl);
+            params.putString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME, "Title");
+            harness.execute(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME, params);
+
+            MediaSessionCompat mediaSession = ReflectionHelpers.getField(harness.getService(), "mediaSession");
+            MediaMetadataCompat metadata = mediaSession.getController().getMetadata();
+            assertEquals(imageUrl, metadata.getString(MediaMetadataCompat.METADATA_KEY_ART_URI));
+            Bitmap artwork = metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ART);
+            assertNotNull(artwork);
+            // The decoder halves the size while it stays at least the target, so each side is under twice the target
+            int largeIconWidth = harness.getService().getResources()
+                    .getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            int largeIconHeight = harness.getService().getResources()
+                    .getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+            assertTrue(artwork.getWidth() < ARTWORK_SIZE);
+            assertTrue(artwork.getWidth() < largeIconWidth * 2);
+            assertTrue(artwork.getHeight() < largeIconHeight * 2);
+        } finally {
+            harness.destroy();
+        }
+    }
+
+    /**
+     * Runs the main looper, where the queue flushes, until the metadata published once the artwork loaded is sent.
+     */
+    private Bundle awaitSessionMetadataWithArtwork() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ARTWORK_LOAD_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            ShadowLooper.idleMainLooper();
+            for (Bundle batch : batches) {
+                List<Bundle> commands = batch.getParcelableArrayList(ROILCommandQueue.BATCH_COMMANDS_PARAM_NAME);
+                for (Bundle command : commands) {
+                    if (ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME.equals(
+                            command.getString(ROILCommandQueue.COMMAND_NAME_PARAM_NAME)) &&
+                            command.getString(
+                                    ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTWORK_KEY_PARAM_NAME
+                            ) != null) {
+                        return command;
+                    }
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        fail("The session metadata was never sent with the artwork key");
+        return null;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void assertNoBitmap(Object value) {
+        if (value instanceof Bitmap) {
+            fail("A Bitmap was sent to the playback service");
+        } else if (value instanceof Bundle) {
+            Bundle bundle = (Bundle) value;
+            for (String key : bundle.keySet()) {
+                assertNoBitmap(bundle.get(key));
+            }
+        } else if (value instanceof Iterable) {
+            for (Object item : (Iterable<?>) value) {
+                assertNoBitmap(item);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object item : (Object[]) value) {
+                assertNoBitmap(item);
+            }
+        }
+    }
+
+    private static File writeArtwork() throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(ARTWORK_SIZE, ARTWORK_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        File file = new File(RuntimeEnvironment.getApplication().getCacheDir(), "artwork.png");
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+        }
+        bitmap.recycle();
+
+        return file;
+    }
+}
@@ -0,0 +1,27 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowMediaPlayer;
+
+/**
+ * Robolectric's MediaPlayer, with the playback params the MediaPlayer engine reads and writes on every play. The
+ * framework methods are native and would return null otherwise.
+ */
+@Implements(MediaPlayer.class)
+public class ROILShadowMediaPlayer extends ShadowMediaPlayer {
+    private PlaybackParams playbackParams = new PlaybackParams().setSpeed(1.0f);
+
+    @Implementation
+    protected PlaybackParams getPlaybackParams() {
+        return playbackParams;
+    }
+
+    @Implementation
+    protected void setPlaybackParams(PlaybackParams params) {
+        playbackParams = params;
+    }
+}
@@ -0,0 +1,184 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.media.MediaPlayer;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowMediaPlayer.State;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.List;
+
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.getShadow;
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.mediaUri;
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.setMediaSourceParams;
+import static com.roil.cordova.plugin.backgroundmediaplayer.ROILPlaybackServiceHarness.setQueueParams;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Source changes arriving faster than the player prepares, as when a user flicks through a list. Only the latest
+ * source may end up prepared or playing, and no player may be called in a state MediaPlayer rejects.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ROILSourceSwitchingTest {
+    private static final int PLAYER_POOL_SIZE = 2;
+    private static final int PREPARATION_DELAY_MS = 200;
+    private static final int SWITCH_COUNT = 10;
+
+    private ROILPlaybackServiceHarness harness;
+
+    @Before
+    public void setUp() {
+        ROILTestPlaybackService.resetSettings();
+        harness = new ROILPlaybackServiceHarness(PREPARATION_DELAY_MS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        harness.destroy();
+    }
+
+    @Test
+    public void rapidSourceChangesOnlyPrepareTheLastSource() {
+        for (int i = 0; i < SWITCH_COUNT; i++) {
+            setMediaSource(i);
+        }
+        harness.advance(PREPARATION_DELAY_MS);
+
+        assertOnlyPlayer(State.PREPARED, SWITCH_COUNT - 1);
+    }
+
+    @Test
+    public void rapidSourceChangesReuseThePooledPlayers() {
+        for (int i = 0; i < SWITCH_COUNT; i++) {
+            setMediaSource(i);
+        }
+        harness.advance(PREPARATION_DELAY_MS);
+
+        ROILMediaPlayerEngine.Factory playerFactory = ReflectionHelpers.getField(harness.getService(), "playerFactory");
+        assertEquals(harness.getCreatedMediaPlayers().size(), playerFactory.getCreatedCount());
+        assertTrue(playerFactory.getCreatedCount() <= PLAYER_POOL_SIZE);
+    }
+
+    @Test
+    public void sourceChangeWhilePreparingDropsThePendingPlay() {
+        setMediaSource(0);
+        play();
+        setMediaSource(1);
+        harness.advance(PREPARATION_DELAY_MS);
+
+        assertOnlyPlayer(State.PREPARED, 1);
+
+        play();
+
+        assertOnlyPlayer(State.STARTED, 1);
+    }
+
+    @Test
+    public void rapidSourceChangesWhilePlayingStopThePlayingSource() {
+        setMediaSource(0);
+        harness.advance(PREPARATION_DELAY_MS);
+        play();
+        assertOnlyPlayer(State.STARTED, 0);
+
+        for (int i = 1; i < SWITCH_COUNT; i++) {
+            setMediaSource(i);
+        }
+        harness.advance(PREPARATION_DELAY_MS);
+
+        assertOnlyPlayer(State.PREPARED, SWITCH_COUNT - 1);
+    }
+
+    @Test
+    public void pauseWhilePreparingKeepsTheSourcePlayable() {
+        setMediaSource(0);
+        pause();
+        harness.advance(PREPARATION_DELAY_MS);
+        play();
+
+        assertOnlyPlayer(State.STARTED, 0);
+    }
+
+    @Test
+    public void pauseBeforePlayKeepsTheSourcePlayable() {
+        setMediaSource(0);
+        harness.advance(PREPARATION_DELAY_MS);
+        pause();
+        play();
+
+        assertOnlyPlayer(State.STARTED, 0);
+    }
+
+    @Test
+    public void rapidSkipsPlayTheLastItem() {
+        assertNoError(harness.execute(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ACTION_NAME,
+                setQueueParams(SWITCH_COUNT, 0)));
+        // The first item, then the next item pre-buffered behind it
+        harness.advance(PREPARATION_DELAY_MS);
+        harness.advance(PREPARATION_DELAY_MS);
+        play();
+        assertOnlyStartedPlayer(0);
+
+        for (int i = 0; i < 3; i++) {
+            assertNoError(harness.execute(ROILBackgroundMediaPlayer.COMMAND_SKIP_TO_NEXT, new Bundle()));
+        }
+        harness.advance(PREPARATION_DELAY_MS);
+        harness.advance(PREPARATION_DELAY_MS);
+
+        assertOnlyStartedPlayer(3);
+    }
+
+    @Test
+    public void destroyWhilePreparingReleasesEveryPlayer() throws InterruptedException {
+        for (int i = 0; i < SWITCH_COUNT; i++) {
+            setMediaSource(i);
+        }
+        harness.destroy();
+
+        List<MediaPlayer> createdMediaPlayers = harness.getCreatedMediaPlayers();
+        assertEquals(createdMediaPlayers.size(), harness.getMediaPlayers(State.END).size());
+    }
+
+    private void assertOnlyPlayer(State state, int mediaIndex) {
+        List<MediaPlayer> activeMediaPlayers = harness.getMediaPlayers(
+                State.PREPARING, State.PREPARED, State.STARTED, State.PAUSED, State.PLAYBACK_COMPLETED
+        );
+        assertEquals(1, activeMediaPlayers.size());
+        assertEquals(state, getShadow(activeMediaPlayers.get(0)).getState());
+        assertEquals(mediaUri(mediaIndex), getShadow(activeMediaPlayers.get(0)).getSourceUri());
+        assertTrue(harness.getMediaPlayers(State.ERROR).isEmpty());
+    }
+
+    /**
+     * Queue tests keep the next item prepared behind the current one, so only the playing player is checked.
+     */
+    private void assertOnlyStartedPlayer(int mediaIndex) {
+        List<MediaPlayer> startedMediaPlayers = harness.getMediaPlayers(State.STARTED);
+        assertEquals(1, startedMediaPlayers.size());
+        assertEquals(mediaUri(mediaIndex), getShadow(startedMediaPlayers.get(0)).getSourceUri());
+        assertTrue(harness.getMediaPlayers(State.ERROR).isEmpty());
+    }
+
+    private static void assertNoError(Bundle result) {
+        assertNull(result.getString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME));
+    }
+
+    private void pause() {
+        assertNoError(harness.execute(ROILBackgroundMediaPlayer.COMMAND_PAUSE, new Bundle()));
+    }
+
+    private void play() {
+        assertNoError(harness.execute(ROILBackgroundMediaPlayer.COMMAND_PLAY, new Bundle()));
+    }
+
+    private void setMediaSource(int mediaIndex) {
+        assertNoError(harness.execute(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE,
+                setMediaSourceParams(mediaUri(mediaIndex))));
+    }
+}
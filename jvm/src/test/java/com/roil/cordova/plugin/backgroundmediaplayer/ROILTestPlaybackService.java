@@ -0,0 +1,86 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.res.Resources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Playback service with the strings and drawables that plugin.xml and the app would add to an app build, so it runs
+ * on Robolectric's default resources. Tests change the plugin preferences in {@link #SETTINGS} before creating it.
+ */
+public class ROILTestPlaybackService extends ROILBackgroundMediaPlaybackService {
+    static final Map<String, String> SETTINGS = new HashMap<>();
+
+    private static final Map<String, Integer> DRAWABLE_IDS = new HashMap<>();
+    private static final int STRING_ID_BASE = 0x7f0f0000;
+
+    static {
+        DRAWABLE_IDS.put("ic_app", android.R.drawable.ic_media_play);
+        DRAWABLE_IDS.put("ic_pause", android.R.drawable.ic_media_pause);
+        DRAWABLE_IDS.put("ic_play", android.R.drawable.ic_media_play);
+    }
+
+    private Resources resources;
+
+    /**
+     * Restores the strings an app build has, with the plugin preferences at their plugin.xml defaults.
+     */
+    static void resetSettings() {
+        SETTINGS.clear();
+        SETTINGS.put("app_name", "ROIL");
+        SETTINGS.put("max_players", "4");
+        SETTINGS.put("notification_app_icon", "ic_app");
+        SETTINGS.put("notification_buffering_label", "Buffering");
+        SETTINGS.put("notification_pause_button_label", "Pause");
+        SETTINGS.put("notification_play_button_label", "Play");
+        SETTINGS.put("periodic_progress_updates", "false");
+        SETTINGS.put("player_engine", "mediaplayer");
+        SETTINGS.put("player_pool_size", "2");
+    }
+
+    @Override
+    public Resources getResources() {
+        if (resources == null) {
+            resources = new SettingsResources(super.getResources(), SETTINGS);
+        }
+
+        return resources;
+    }
+
+    private static class SettingsResources extends Resources {
+        private final List<String> names;
+        private final Map<String, String> strings;
+
+        @SuppressWarnings("deprecation")
+        private SettingsResources(Resources base, Map<String, String> strings) {
+            super(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration());
+            this.names = new ArrayList<>(strings.keySet());
+            this.strings = new HashMap<>(strings);
+        }
+
+        @Override
+        public int getIdentifier(String name, String defType, String defPackage) {
+            if ("string".equals(defType) && strings.containsKey(name)) {
+                return STRING_ID_BASE + names.indexOf(name);
+            }
+            if ("drawable".equals(defType) && DRAWABLE_IDS.containsKey(name)) {
+                return DRAWABLE_IDS.get(name);
+            }
+
+            return super.getIdentifier(name, defType, defPackage);
+        }
+
+        @Override
+        public String getString(int id) throws NotFoundException {
+            int index = id - STRING_ID_BASE;
+            if (index >= 0 && index < names.size()) {
+                return strings.get(names.get(index));
+            }
+
+            return super.getString(id);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Artwork pipeline shared by the plugin and the playback service: a memory LRU capped by bitmap byte count in front
+ * of an on-disk cache under the app cache dir. Bitmaps are downsampled to the notification large icon size on decode.
+ */
+public class ROILArtworkCache {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String DISK_CACHE_DIRECTORY_NAME = "roil_artwork";
+    private static final long DISK_CACHE_MAX_BYTES = 10 * 1024 * 1024;
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 32;
+
+    private static ROILArtworkCache instance;
+
+    private final File diskCacheDirectory;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ROILPlaybackMetrics metrics;
+    private final int targetHeight;
+    private final int targetWidth;
+
+    private ROILArtworkCache(Context context) {
+        diskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY_NAME);
+        metrics = ROILPlaybackMetrics.getInstance(context);
+        targetHeight = context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        targetWidth = context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+
+        int memoryCacheMaxBytes = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_FRACTION);
+        memoryCache = new LruCache<String, Bitmap>(memoryCacheMaxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    static synchronized ROILArtworkCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ROILArtworkCache(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns the artwork for the url, looking it up in memory, then on disk, then downloading it. Blocks on disk and
+     * network IO so it must not be called from the main thread. Only downloads count as artwork misses.
+     */
+    @Nullable
+    Bitmap get(String url) throws IOException {
+        Bitmap bitmap = memoryCache.get(url);
+        if (bitmap != null) {
+            metrics.count(ROILPlaybackMetrics.COUNTER_ARTWORK_HITS);
+            return bitmap;
+        }
+
+        File file = getDiskCacheFile(url);
+        if (file.exists()) {
+            metrics.count(ROILPlaybackMetrics.COUNTER_ARTWORK_HITS);
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            metrics.count(ROILPlaybackMetrics.COUNTER_ARTWORK_MISSES);
+            long fetchStart = ROILPlaybackMetrics.now();
+            download(url, file);
+            metrics.record(ROILPlaybackMetrics.SPAN_ARTWORK_FETCH, fetchStart);
+        }
+
+        long decodeStart = ROILPlaybackMetrics.now();
+        bitmap = decode(file);
+        metrics.record(ROILPlaybackMetrics.SPAN_ARTWORK_DECODE, decodeStart);
+        if (bitmap != null) {
+            memoryCache.put(url, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Returns the artwork for the url if it is in the memory cache, never blocks.
+     */
+    @Nullable
+    Bitmap getCached(String url) {
+        return memoryCache.get(url);
+    }
+
+    private static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= targetWidth && height / (inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+
+        return inSampleSize;
+    }
+
+    static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    @Nullable
+    Bitmap decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            file.delete();
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap != null) {
+            metrics.count(ROILPlaybackMetrics.COUNTER_ARTWORK_BYTES_DECODED, bitmap.getByteCount());
+        }
+
+        return bitmap;
+    }
+
+    private void download(String url, File file) throws IOException {
+        if (!diskCacheDirectory.exists() && !diskCacheDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + diskCacheDirectory);
+        }
+
+        File temporaryFile = new File(diskCacheDirectory, file.getName() + ".tmp");
+        try (InputStream inputStream = new URL(url).openConnection().getInputStream();
+             OutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            temporaryFile.delete();
+            throw e;
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Unable to move artwork into " + file);
+        }
+        trimDiskCache();
+    }
+
+    private File getDiskCacheFile(String url) {
+        return new File(diskCacheDirectory, hash(url));
+    }
+
+    private synchronized void trimDiskCache() {
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length && totalBytes > DISK_CACHE_MAX_BYTES; i++) {
+            totalBytes -= files[i].length();
+            files[i].delete();
+        }
+    }
+}
@@ -2,20 +2,23 @@ package com.roil.cordova.plugin.backgroundmediaplayer;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.media.AudioAttributes;
-import android.media.MediaPlayer;
-import android.media.PlaybackParams;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.Process;
 import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
-import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 import android.view.KeyEvent;
 
 import androidx.annotation.NonNull;
@@ -25,24 +28,179 @@ import androidx.core.app.NotificationManagerCompat;
 import androidx.media.MediaBrowserServiceCompat;
 import androidx.media.session.MediaButtonReceiver;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Threading: the players, the queue, the notification and all playback state are owned by the playback thread. Media
+ * session callbacks and player listeners are delivered there, and anything arriving on the main thread, such as
+ * browser callbacks and onDestroy, is posted to the playback handler before touching that state.
+ */
 public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompat {
-    private static final String EMPTY_MEDIA_ROOT_ID = "empty_root_id";
     private static final String LOG_TAG = "ROILBackgroundMediaPlaybackService";
+    private static final int MAX_PLAYERS_DEFAULT = 4;
+    private static final int MAX_UNPAGED_CHILDREN = 500;
+    private static final String MEDIA_ROOT_ID = ROILBrowseTree.ROOT_ID;
     private static final String NOTIFICATION_CHANNEL_ID = "ROILBackgroundPlayerNotificationChannel";
+    private static final String PLAYBACK_THREAD_NAME = "ROILBackgroundPlayback";
+    private static final int MEDIA3_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_DEFAULT_MS = 5000;
+    private static final int MEDIA3_BUFFER_FOR_PLAYBACK_DEFAULT_MS = 2500;
+    private static final int MEDIA3_MAX_BUFFER_DEFAULT_MS = 50000;
+    private static final int MEDIA3_MIN_BUFFER_DEFAULT_MS = 15000;
+    private static final int PLAYER_POOL_DEFAULT_SIZE = 2;
+    private static final long PROGRESS_UPDATES_INTERVAL_MS = 500;
+    private static final long PROGRESS_UPDATES_MAX_INTERVAL_MS = 1000;
+    private static final long PROGRESS_UPDATES_MIN_INTERVAL_MS = 250;
+    private static final long PROGRESS_UPDATES_SCREEN_OFF_INTERVAL_MS = 5000;
+    private static final String RESUME_POSITIONS_FILE_NAME = "roil_resume_positions";
+    private static final long RESUME_POSITIONS_SAVE_INTERVAL_MS = 15000;
+    private static final long SUPPORTED_PLAYBACK_ACTIONS = PlaybackStateCompat.ACTION_PLAY |
+            PlaybackStateCompat.ACTION_PAUSE |
+            PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
+            PlaybackStateCompat.ACTION_SEEK_TO |
+            PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
+            PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
+            PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM;
 
+    private final ExecutorService artworkExecutor = Executors.newSingleThreadExecutor();
+    private final MediaSessionCallback mediaSessionCallback = new MediaSessionCallback();
+    private final List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
+    private Uri currentUri;
+
+    private Future<?> artworkLoad;
+    private String artworkLoadKey;
     private AtomicInteger nextNotificationId = new AtomicInteger();
-    private MediaPlayer player;
+    private ROILPlayer nextPlayer;
+    private ROILPlayer player;
     private MediaSessionCompat mediaSession;
-    private TimerTask progressUpdatesTask;
-    private Timer progressUpdatesTimer;
+    private ROILPlaybackMetrics metrics;
+    private NotificationCompat.Builder notificationBuilder;
+    private String notificationBufferingLabel;
+    private NotificationCompat.Action notificationPauseAction;
+    private NotificationCompat.Action notificationPlayAction;
+    private PendingIntent notificationStopIntent;
+    private ROILPlayer.Factory playerFactory;
+    private ROILPlayerSessions playerSessions;
+    private PowerManager powerManager;
+    private Handler playbackHandler;
+    private HandlerThread playbackThread;
+    private ROILResumePositionStore resumePositions;
 
+    private boolean buffering = false;
+    private int bufferingPercent = -1;
     private int currentNotificationId = 0;
+    private boolean currentUriCompleted = false;
+    private boolean notificationBuffering = false;
+    private String notificationContentText;
+    private String notificationContentTitle;
+    private Bitmap notificationLargeIcon;
+    private boolean notificationPlaying = false;
+    private boolean notificationPosted = false;
+    private long lastProgressUpdatePosition = -1;
+    private int lastProgressUpdateState = -1;
+    private String metadataAlbum;
+    private String metadataArtist;
+    private Bitmap metadataArtwork;
+    private String metadataArtworkKey;
+    private long metadataDuration = -1;
+    private boolean metadataPublished = false;
+    private String metadataTitle;
+    private boolean nextPlayerPrepared = false;
+    private int pendingSeekPosition = -1;
+    private boolean periodicProgressUpdates = false;
+    private float requestedPlaybackSpeed = 1.0f;
+    private boolean playerPrepared = false;
+    private boolean playWhenPrepared = false;
+    private int queueIndex = -1;
+
+    private final Runnable progressUpdatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int playbackState = getCurrentPlaybackState();
+            long position = player.getCurrentPosition();
+            float playbackSpeed = getPlaybackSpeed();
+            if (position != lastProgressUpdatePosition || playbackState != lastProgressUpdateState) {
+                lastProgressUpdatePosition = position;
+                lastProgressUpdateState = playbackState;
+                setPlaybackState(playbackState, playbackSpeed);
+            }
+
+            playbackHandler.postDelayed(this, getProgressUpdatesInterval(playbackSpeed));
+        }
+    };
+
+    private final ROILPlayer.Listener playerListener = new ROILPlayer.Listener() {
+        @Override
+        public void onBufferingChanged(ROILPlayer bufferingPlayer, boolean isBuffering) {
+            if (bufferingPlayer != player || isBuffering == buffering) {
+                return;
+            }
+
+            buffering = isBuffering;
+            if (buffering && player.isPlaying()) {
+                metrics.count(ROILPlaybackMetrics.COUNTER_REBUFFERS);
+                metrics.restart(ROILPlaybackMetrics.SPAN_STALL);
+            } else if (!buffering) {
+                metrics.end(ROILPlaybackMetrics.SPAN_STALL);
+            }
+            publishPlaybackState();
+            if (currentNotificationId != 0) {
+                buildNotification();
+            }
+        }
+
+        @Override
+        public void onBufferingUpdate(ROILPlayer bufferingPlayer, int percent) {
+            if (bufferingPlayer == player && percent != bufferingPercent) {
+                bufferingPercent = percent;
+                Bundle extras = new Bundle();
+                extras.putInt(ROILBackgroundMediaPlayer.SESSION_EVENT_BUFFERING_UPDATE_PERCENT_PARAM_NAME, percent);
+                mediaSession.sendSessionEvent(ROILBackgroundMediaPlayer.SESSION_EVENT_BUFFERING_UPDATE, extras);
+            }
+        }
+
+        @Override
+        public void onCompletion(ROILPlayer completedPlayer) {
+            onPlayerCompletion(completedPlayer);
+        }
+
+        @Override
+        public void onError(ROILPlayer errorPlayer, String message) {
+            onPlayerError(errorPlayer, message);
+        }
+
+        @Override
+        public void onPrepared(ROILPlayer preparedPlayer) {
+            if (preparedPlayer == player) {
+                onPlayerPrepared();
+            } else if (preparedPlayer == nextPlayer) {
+                nextPlayerPrepared = true;
+                player.setNextPlayer(nextPlayer);
+            }
+        }
+
+        @Override
+        public void onSeekComplete(ROILPlayer seekPlayer) {
+            if (seekPlayer == player) {
+                publishPlaybackState();
+            }
+        }
+    };
+
+    private final Runnable resumePositionsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveResumePosition();
+            resumePositions.flush();
+            playbackHandler.postDelayed(this, RESUME_POSITIONS_SAVE_INTERVAL_MS);
+        }
+    };
 
     private class MediaSessionCallback extends MediaSessionCompat.Callback {
         @Override
@@ -67,40 +225,51 @@ public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompa
             return handled;
         }
 
+        /**
+         * Plays a playable node of the browse tree on its own, like a media source set from JS.
+         */
         @Override
-        public void onPrepareFromUri(Uri uri, Bundle extras) {
-            if (player != null) {
-                player.stop();
-                player.release();
+        public void onPlayFromMediaId(String mediaId, Bundle extras) {
+            ROILBrowseTree.Node node = ROILBrowseTree.getInstance().getNode(mediaId);
+            if (node == null || node.getSrc() == null) {
+                return;
             }
 
-            try {
-                player = new MediaPlayer();
-                AudioAttributes audioAttributes = new AudioAttributes.Builder()
-                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                        .setUsage(AudioAttributes.USAGE_MEDIA)
-                        .build();
-                player.setAudioAttributes(audioAttributes);
-                player.setDataSource(ROILBackgroundMediaPlaybackService.this, uri);
-                player.setOnCompletionListener(mediaPlayer -> {
-                    clearProgressUpdates();
-                    PlaybackStateCompat playbackState = new PlaybackStateCompat.Builder()
-                            .setState(PlaybackStateCompat.STATE_PAUSED, player.getDuration(), 1.0f)
-                            .build();
-
-                    mediaSession.setPlaybackState(playbackState);
-                });
-                player.prepareAsync();
-            } catch (IOException e) {
-                //
+            clearQueue();
+            preparePlayer(Uri.parse(node.getSrc()), true);
+            setSessionMetadata(node.getDescription());
+        }
+
+        @Override
+        public void onPrepareFromUri(Uri uri, Bundle extras) {
+            clearQueue();
+            if (preparePlayer(uri, false) && extras != null &&
+                    extras.getBoolean(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE_RESUME_PARAM_NAME)) {
+                long resumePosition = resumePositions.get(uri.toString());
+                if (resumePosition > 0) {
+                    pendingSeekPosition = (int) resumePosition;
+                }
             }
         }
 
         @Override
         public void onStop() {
             clearProgressUpdates();
+            saveResumePosition();
+            resumePositions.flush();
 
-            player.pause();
+            // MediaPlayer only pauses once started, it throws if it is still preparing or was never started
+            playWhenPrepared = false;
+            metrics.cancel(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+            if (player != null && player.isPlaying()) {
+                player.pause();
+            }
+            if (playerPrepared) {
+                // Controllers extrapolate the position of a playing state until another state is published
+                setPlaybackState(PlaybackStateCompat.STATE_PAUSED, 0.0f);
+            }
+            // Nothing keeps the service in the foreground once it stops, so the sessions can't keep playing either
+            playerSessions.pauseAll();
             mediaSession.setActive(false);
 
             stopForeground(false);
@@ -110,11 +279,15 @@ public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompa
 
         @Override
         public void onPause() {
-            if (player.isPlaying()) {
+            playWhenPrepared = false;
+            metrics.cancel(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+            if (player != null && player.isPlaying()) {
                 clearProgressUpdates();
                 setPlaybackState(PlaybackStateCompat.STATE_PAUSED, 0.0f);
 
                 player.pause();
+                saveResumePosition();
+                resumePositions.flush();
                 mediaSession.setActive(false);
 
                 stopForeground(false);
@@ -125,42 +298,69 @@ public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompa
 
         @Override
         public void onPlay() {
-            if (!player.isPlaying()) {
+            if (!playerPrepared) {
+                metrics.begin(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+                playWhenPrepared = true;
+            } else if (!player.isPlaying()) {
+                metrics.begin(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+                currentUriCompleted = false;
                 player.start();
+                metrics.end(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+                applyPlaybackSpeed();
                 mediaSession.setActive(true);
 
                 scheduleProgressUpdates();
                 buildNotification();
+            } else {
+                // Nothing starts, so a span the plugin began for this play would otherwise end with the next start
+                metrics.cancel(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
             }
-
         }
 
         @Override
         public void onSeekTo(long pos) {
-            player.seekTo((int) pos);
+            if (playerPrepared) {
+                player.seekTo(pos);
+            } else {
+                pendingSeekPosition = (int) pos;
+            }
         }
 
         @Override
-        public void onCustomAction(String action, Bundle extras) {
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M &&
-                    action.equals(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_ACTION_NAME)) {
-                float playbackSpeed = extras.getFloat(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME);
-                PlaybackParams playbackParams = new PlaybackParams();
-                playbackParams.setSpeed(playbackSpeed);
-                player.setPlaybackParams(playbackParams);
-                scheduleProgressUpdates();
-            } else if (action.equals(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME)) {
-                String notificationTitle = extras.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME);
-                Bitmap notificationIcon = extras.getParcelable(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ICON_PARAM_NAME);
+        public void onSkipToNext() {
+            if (queueIndex + 1 < queue.size()) {
+                boolean wasPlaying = playWhenPrepared || player.isPlaying();
+                if (nextPlayerPrepared) {
+                    player.setNextPlayer(null);
+                    player.stop();
+                    advanceToNextPlayer();
+                    if (wasPlaying) {
+                        onPlay();
+                    }
+                } else {
+                    prepareQueueItem(queueIndex + 1, wasPlaying);
+                }
+            }
+        }
 
-                MediaMetadataCompat.Builder metadataBuilder = new MediaMetadataCompat.Builder();
-                metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, notificationTitle.substring(0, notificationTitle.indexOf(" - ")));
-                metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, notificationTitle.substring(notificationTitle.indexOf(" - ") + 3));
-                metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, notificationIcon);
+        @Override
+        public void onSkipToPrevious() {
+            if (queueIndex > 0) {
+                prepareQueueItem(queueIndex - 1, playWhenPrepared || player.isPlaying());
+            }
+        }
 
-                mediaSession.setMetadata(metadataBuilder.build());
+        @Override
+        public void onSkipToQueueItem(long id) {
+            if (id >= 0 && id < queue.size()) {
+                prepareQueueItem((int) id, playWhenPrepared || (player != null && player.isPlaying()));
             }
         }
+
+        @Override
+        public void onCustomAction(String action, Bundle extras) {
+            executeCommand(action, extras);
+        }
     }
 
     @Override
@@ -168,6 +368,51 @@ public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompa
         super.onCreate();
 
         Context context = this;
+        metrics = ROILPlaybackMetrics.getInstance(context);
+        powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        playbackThread = new HandlerThread(PLAYBACK_THREAD_NAME, Process.THREAD_PRIORITY_AUDIO);
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
+        resumePositions = new ROILResumePositionStore(new File(getFilesDir(), RESUME_POSITIONS_FILE_NAME));
+        playbackHandler.post(resumePositions::load);
+        int periodicProgressUpdatesId = getResourceId("periodic_progress_updates", "string");
+        periodicProgressUpdates = periodicProgressUpdatesId != 0 &&
+                Boolean.parseBoolean(getString(periodicProgressUpdatesId));
+        if (ROILBackgroundMediaPlayer.usesMedia3Engine(context)) {
+            playerFactory = new ROILExoPlayerEngine.Factory(
+                    context,
+                    playbackThread.getLooper(),
+                    getIntegerSetting("media3_min_buffer_ms", MEDIA3_MIN_BUFFER_DEFAULT_MS),
+                    getIntegerSetting("media3_max_buffer_ms", MEDIA3_MAX_BUFFER_DEFAULT_MS),
+                    getIntegerSetting("media3_buffer_for_playback_ms", MEDIA3_BUFFER_FOR_PLAYBACK_DEFAULT_MS),
+                    getIntegerSetting(
+                            "media3_buffer_for_playback_after_rebuffer_ms",
+                            MEDIA3_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_DEFAULT_MS
+                    )
+            );
+        } else {
+            playerFactory = new ROILMediaPlayerEngine.Factory(
+                    context,
+                    getIntegerSetting("player_pool_size", PLAYER_POOL_DEFAULT_SIZE)
+            );
+        }
+        playerSessions = new ROILPlayerSessions(
+                playerFactory,
+                getIntegerSetting("max_players", MAX_PLAYERS_DEFAULT),
+                new ROILPlayerSessions.Listener() {
+                    @Override
+                    public int getPrimaryPlayerCount() {
+                        return (player != null ? 1 : 0) + (nextPlayer != null ? 1 : 0);
+                    }
+
+                    @Override
+                    public void onSessionCompletion(String sessionId) {
+                        Bundle extras = new Bundle();
+                        extras.putString(ROILBackgroundMediaPlayer.COMMAND_SESSION_ID_PARAM_NAME, sessionId);
+                        mediaSession.sendSessionEvent(ROILBackgroundMediaPlayer.SESSION_EVENT_COMPLETION, extras);
+                    }
+                }
+        );
 
         mediaSession = new MediaSessionCompat(context, LOG_TAG);
         mediaSession.setFlags(
@@ -175,41 +420,284 @@ public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompa
                         MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
         PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
-                .setActions(PlaybackStateCompat.ACTION_PLAY | PlaybackStateCompat.ACTION_PAUSE);
+                .setActions(SUPPORTED_PLAYBACK_ACTIONS);
 
         mediaSession.setPlaybackState(stateBuilder.build());
-        mediaSession.setCallback(new MediaSessionCallback());
+        mediaSession.setCallback(mediaSessionCallback, playbackHandler);
 
         setSessionToken(mediaSession.getSessionToken());
     }
 
     @Override
     public void onDestroy() {
-        this.clearProgressUpdates();
-        this.clearNotification();
+        playbackHandler.post(() -> {
+            clearProgressUpdates();
+            clearNotification();
+            saveResumePosition();
+            resumePositions.close();
+            releaseNextPlayer();
 
-        if (player != null) {
-            if (player.isPlaying()) {
-                player.stop();
+            if (player != null) {
+                player.release();
+                player = null;
             }
-            player.release();
-        }
+            playerSessions.releaseAll();
+            playerFactory.clear();
+            artworkExecutor.shutdownNow();
 
-        if (mediaSession != null) {
-            mediaSession.setActive(false);
-            mediaSession.release();
+            if (mediaSession != null) {
+                mediaSession.setActive(false);
+                mediaSession.release();
+            }
+        });
+        playbackThread.quitSafely();
+    }
+
+    /**
+     * Under memory pressure, releases the secondary sessions that aren't playing and the players kept for reuse.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+            playbackHandler.post(() -> {
+                playerSessions.releaseIdle();
+                playerFactory.clear();
+            });
         }
     }
 
     @Nullable
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
-        return new BrowserRoot(EMPTY_MEDIA_ROOT_ID, null);
+        return new BrowserRoot(MEDIA_ROOT_ID, null);
+    }
+
+    /**
+     * Runs a batch of plugin commands in order on the playback thread and replies with one result bundle per command.
+     */
+    @Override
+    public void onCustomAction(@NonNull String action, Bundle extras, @NonNull Result<Bundle> result) {
+        if (!ROILCommandQueue.BATCH_ACTION_NAME.equals(action)) {
+            result.sendError(null);
+            return;
+        }
+
+        List<Bundle> commands = extras.getParcelableArrayList(ROILCommandQueue.BATCH_COMMANDS_PARAM_NAME);
+        result.detach();
+        boolean posted = playbackHandler.post(() -> {
+            ArrayList<Bundle> results = new ArrayList<>(commands != null ? commands.size() : 0);
+            if (commands != null) {
+                for (Bundle command : commands) {
+                    long commandStart = ROILPlaybackMetrics.now();
+                    results.add(executeCommand(command.getString(ROILCommandQueue.COMMAND_NAME_PARAM_NAME), command));
+                    metrics.record(ROILPlaybackMetrics.SPAN_COMMAND, commandStart);
+                }
+            }
+
+            Bundle resultData = new Bundle();
+            resultData.putParcelableArrayList(ROILCommandQueue.BATCH_RESULTS_PARAM_NAME, results);
+            result.sendResult(resultData);
+        });
+        if (!posted) {
+            // The playback thread has quit, the batch would otherwise never get a reply
+            result.sendError(null);
+        }
     }
 
     @Override
     public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
-        result.sendResult(null);
+        onLoadChildren(parentId, result, Bundle.EMPTY);
+    }
+
+    /**
+     * Serves pages of the browse tree set from JS. Browsers that don't ask for a page get the first children only,
+     * so a large catalogue never goes out in a single transaction. Until the tree has children the root lists the
+     * queue.
+     */
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                               @NonNull Bundle options) {
+        ROILBrowseTree browseTree = ROILBrowseTree.getInstance();
+        if (!MEDIA_ROOT_ID.equals(parentId) || browseTree.getChildCount(MEDIA_ROOT_ID) > 0) {
+            int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+            int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+            if (page < 0 || pageSize <= 0) {
+                page = 0;
+                pageSize = MAX_UNPAGED_CHILDREN;
+            }
+            result.sendResult(browseTree.getChildren(parentId, page, pageSize));
+            return;
+        }
+
+        result.detach();
+        boolean posted = playbackHandler.post(() -> {
+            List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>(queue.size());
+            for (MediaSessionCompat.QueueItem queueItem : queue) {
+                mediaItems.add(new MediaBrowserCompat.MediaItem(
+                        queueItem.getDescription(),
+                        MediaBrowserCompat.MediaItem.FLAG_PLAYABLE
+                ));
+            }
+            result.sendResult(mediaItems);
+        });
+        if (!posted) {
+            result.sendResult(null);
+        }
+    }
+
+    /**
+     * Swaps in the pre-buffered next player as the current one and starts pre-buffering the item after it.
+     */
+    private void advanceToNextPlayer() {
+        saveResumePosition();
+        ROILPlayer previousPlayer = player;
+        player = nextPlayer;
+        nextPlayer = null;
+        nextPlayerPrepared = false;
+        previousPlayer.release();
+
+        buffering = false;
+        bufferingPercent = -1;
+        pendingSeekPosition = -1;
+        playerPrepared = true;
+        queueIndex++;
+        currentUri = queue.get(queueIndex).getDescription().getMediaUri();
+        currentUriCompleted = false;
+        onQueueItemChanged();
+        prepareNextPlayer();
+    }
+
+    private void applyPlaybackSpeed() {
+        if (player.isPlaying() && getPlaybackSpeed() != requestedPlaybackSpeed) {
+            player.setPlaybackSpeed(requestedPlaybackSpeed);
+        }
+    }
+
+    /**
+     * Runs one command on the playback thread.
+     *
+     * @return the command's result, which carries an error message if the command could not run
+     */
+    Bundle executeCommand(String name, Bundle params) {
+        Bundle result = new Bundle();
+        if (name == null) {
+            result.putString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME, "Missing command");
+            return result;
+        }
+
+        String sessionId = params != null ?
+                params.getString(ROILBackgroundMediaPlayer.COMMAND_SESSION_ID_PARAM_NAME) : null;
+        switch (name) {
+            case ROILBackgroundMediaPlayer.COMMAND_PAUSE_SESSION:
+                long sessionPosition = playerSessions.pause(sessionId);
+                if (sessionPosition < 0) {
+                    result.putString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME,
+                            "No media source in session " + sessionId);
+                } else {
+                    result.putDouble(ROILBackgroundMediaPlayer.COMMAND_PAUSE_POSITION_PARAM_NAME,
+                            sessionPosition / 1000.0);
+                }
+                return result;
+            case ROILBackgroundMediaPlayer.COMMAND_PLAY_SESSION:
+                if (!playerSessions.play(sessionId,
+                        params.getInt(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME, -1))) {
+                    result.putString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME,
+                            "No media source in session " + sessionId);
+                }
+                return result;
+            case ROILBackgroundMediaPlayer.COMMAND_RELEASE_SESSION:
+                playerSessions.release(sessionId);
+                return result;
+            case ROILBackgroundMediaPlayer.COMMAND_SET_SESSION_SOURCE:
+                if (!playerSessions.setSource(
+                        sessionId,
+                        params.getParcelable(ROILBackgroundMediaPlayer.COMMAND_SET_SESSION_SOURCE_URI_PARAM_NAME),
+                        params.getInt(ROILBackgroundMediaPlayer.COMMAND_SET_SESSION_SOURCE_PRIORITY_PARAM_NAME)
+                )) {
+                    result.putString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME,
+                            "No player available for session " + sessionId);
+                }
+                return result;
+            case ROILBackgroundMediaPlayer.COMMAND_SET_BROWSE_TREE:
+                notifyChildrenChanged(params.getString(ROILBackgroundMediaPlayer.COMMAND_SET_BROWSE_TREE_PARENT_ID_PARAM_NAME));
+                return result;
+            case ROILBackgroundMediaPlayer.COMMAND_SET_BUFFERING_POLICY:
+                setBufferingPolicy(params);
+                return result;
+            case ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE:
+                mediaSessionCallback.onPrepareFromUri(
+                        params.getParcelable(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE_URI_PARAM_NAME),
+                        params
+                );
+                if (params.getBoolean(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE_RESUME_PARAM_NAME)) {
+                    result.putDouble(ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE_RESUME_POSITION_PARAM_NAME,
+                            Math.max(0, pendingSeekPosition) / 1000.0);
+                }
+                return result;
+            case ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ACTION_NAME:
+                List<Bundle> items = params.getParcelableArrayList(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEMS_PARAM_NAME);
+                int startIndex = params.getInt(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_START_INDEX_PARAM_NAME);
+                setQueue(items, startIndex);
+                return result;
+            case ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME:
+                setSessionMetadata(
+                        params.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTIST_PARAM_NAME),
+                        params.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME),
+                        params.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ALBUM_PARAM_NAME),
+                        params.getLong(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_DURATION_PARAM_NAME, -1),
+                        params.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ARTWORK_KEY_PARAM_NAME)
+                );
+                return result;
+        }
+
+        if (player == null) {
+            result.putString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME, "No media source has been set");
+            return result;
+        }
+
+        switch (name) {
+            case ROILBackgroundMediaPlayer.COMMAND_PAUSE:
+                result.putDouble(ROILBackgroundMediaPlayer.COMMAND_PAUSE_POSITION_PARAM_NAME,
+                        (playerPrepared ? player.getCurrentPosition() : Math.max(0, pendingSeekPosition)) / 1000.0);
+                result.putString(ROILBackgroundMediaPlayer.COMMAND_PAUSE_STATE_PARAM_NAME,
+                        player.isPlaying() ? "playing" : "paused");
+                mediaSessionCallback.onStop();
+                break;
+            case ROILBackgroundMediaPlayer.COMMAND_PLAY:
+                if (params.containsKey(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME)) {
+                    mediaSessionCallback.onSeekTo(params.getInt(ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME));
+                }
+                if (params.containsKey(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME)) {
+                    setRequestedPlaybackSpeed(params.getFloat(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME));
+                } else {
+                    mediaSessionCallback.onPlay();
+                }
+                break;
+            case ROILBackgroundMediaPlayer.COMMAND_SKIP_TO_NEXT:
+                mediaSessionCallback.onSkipToNext();
+                break;
+            case ROILBackgroundMediaPlayer.COMMAND_SKIP_TO_PREVIOUS:
+                mediaSessionCallback.onSkipToPrevious();
+                break;
+            case ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_ACTION_NAME:
+                setRequestedPlaybackSpeed(params.getFloat(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME));
+                break;
+            default:
+                result.putString(ROILCommandQueue.COMMAND_ERROR_PARAM_NAME, "Unknown command " + name);
+                break;
+        }
+
+        return result;
+    }
+
+    private void clearQueue() {
+        if (!queue.isEmpty()) {
+            queue.clear();
+            queueIndex = -1;
+            mediaSession.setQueue(null);
+            notifyChildrenChanged(MEDIA_ROOT_ID);
+        }
     }
 
     private void clearNotification() {
@@ -220,153 +708,533 @@ public class ROILBackgroundMediaPlaybackService extends MediaBrowserServiceCompa
     }
 
     private void clearProgressUpdates() {
-        if (progressUpdatesTask != null) {
-            progressUpdatesTask.cancel();
-            progressUpdatesTask = null;
+        if (playbackHandler != null) {
+            playbackHandler.removeCallbacks(progressUpdatesRunnable);
+            playbackHandler.removeCallbacks(resumePositionsRunnable);
         }
+        lastProgressUpdatePosition = -1;
+        lastProgressUpdateState = -1;
+    }
+
+    /**
+     * The player it replaces must be released and cleared first, so the sessions only give up the players it needs.
+     */
+    private ROILPlayer createPlayer() {
+        playerSessions.reservePrimaryPlayer();
+        return playerFactory.create(playerListener);
+    }
 
-        if (progressUpdatesTimer != null) {
-            progressUpdatesTimer.cancel();
-            progressUpdatesTimer.purge();
-            progressUpdatesTimer = null;
+    private int getIntegerSetting(String name, int defaultValue) {
+        int id = getResourceId(name, "string");
+        if (id != 0) {
+            try {
+                return Integer.parseInt(getString(id));
+            } catch (NumberFormatException e) {
+                //
+            }
         }
+
+        return defaultValue;
     }
 
-    private int getIconResourceId(String name) {
-        return getResources().getIdentifier(name,"drawable", getPackageName());
+    private int getResourceId(String name, String type) {
+        metrics.count(ROILPlaybackMetrics.COUNTER_RESOURCE_LOOKUPS);
+        return getResources().getIdentifier(name, type, getPackageName());
     }
 
-    private float getPlaybackSpeed() {
-        float playbackSpeed;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-            playbackSpeed = player.getPlaybackParams().getSpeed();
-        } else {
-            playbackSpeed = 1.0f;
+    private int getCurrentPlaybackState() {
+        if (buffering) {
+            return PlaybackStateCompat.STATE_BUFFERING;
+        }
+
+        return player.isPlaying() ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_PAUSED;
+    }
+
+    /**
+     * Ticks are spaced so that each one covers roughly the same amount of media time whatever the playback speed, and
+     * slow down while the screen is off since only the lock screen can show the position then.
+     */
+    private long getProgressUpdatesInterval(float playbackSpeed) {
+        if (!powerManager.isInteractive()) {
+            return PROGRESS_UPDATES_SCREEN_OFF_INTERVAL_MS;
         }
 
-        return playbackSpeed;
+        long interval = playbackSpeed > 0 ? (long) (PROGRESS_UPDATES_INTERVAL_MS / playbackSpeed) :
+                PROGRESS_UPDATES_MAX_INTERVAL_MS;
+        return Math.max(PROGRESS_UPDATES_MIN_INTERVAL_MS, Math.min(PROGRESS_UPDATES_MAX_INTERVAL_MS, interval));
+    }
+
+    private float getPlaybackSpeed() {
+        return player.getPlaybackSpeed();
     }
 
-    private void buildNotification() {
+    /**
+     * Posts the notification, reusing the builder and the resources resolved by initNotification. It is only re-posted
+     * when one of its visible fields changed since the last post.
+     */
+    void buildNotification() {
         if (currentNotificationId == 0 || currentNotificationId == nextNotificationId.get()) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                String appName = getString(getResources().getIdentifier(
-                        "app_name",
-                        "string",
-                        getPackageName()
-                        )
-                );
-                int importance = NotificationManager.IMPORTANCE_DEFAULT;
-                NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, appName, importance);
-                channel.setDescription(appName);
-                NotificationManager notificationManager = this.getSystemService(NotificationManager.class);
-                notificationManager.createNotificationChannel(channel);
+            long buildStart = ROILPlaybackMetrics.now();
+            if (notificationBuilder == null) {
+                initNotification();
             }
 
             if (currentNotificationId == 0) {
                 currentNotificationId = nextNotificationId.incrementAndGet();
+                notificationPosted = false;
             }
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
-
-            MediaControllerCompat mediaController = mediaSession.getController();
-            MediaMetadataCompat metadata = mediaController.getMetadata();
-
-            builder
-                    .setContentTitle(metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST))
-                    .setContentText(metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE))
-                    .setLargeIcon(metadata.getDescription().getIconBitmap())
-                    .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-                    .setSmallIcon(getIconResourceId(
-                            getString(
-                                    getResources().getIdentifier(
-                                            "notification_app_icon",
-                                            "string",
-                                            getPackageName()
-                                    )
-                            )
-                    ))
-                    .setOnlyAlertOnce(true);
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                builder.setStyle(
-                        new androidx.media.app.NotificationCompat.MediaStyle()
-                                .setMediaSession(mediaSession.getSessionToken())
-                                .setShowActionsInCompactView(0)
-                                .setShowCancelButton(true)
-                                .setCancelButtonIntent(
-                                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                                this,
-                                                PlaybackStateCompat.ACTION_PAUSE
-                                        )
-                                )
-                );
+
+            // The published fields are kept here, the session's copy of the metadata would come back over IPC
+            String contentTitle = metadataArtist;
+            String contentText = metadataTitle;
+            Bitmap largeIcon = metadataArtwork;
+            boolean playing = player.isPlaying();
+            boolean showBuffering = playing && buffering;
+            if (notificationPosted && playing == notificationPlaying && showBuffering == notificationBuffering &&
+                    largeIcon == notificationLargeIcon &&
+                    TextUtils.equals(contentTitle, notificationContentTitle) &&
+                    TextUtils.equals(contentText, notificationContentText)) {
+                metrics.count(ROILPlaybackMetrics.COUNTER_NOTIFICATION_SKIPS);
+                return;
             }
 
-            if (player.isPlaying()) {
-                builder
+            notificationBuilder
+                    .setContentTitle(contentTitle)
+                    .setContentText(contentText)
+                    .setLargeIcon(largeIcon)
+                    .setSubText(showBuffering ? notificationBufferingLabel : null)
+                    .clearActions();
+
+            if (playing) {
+                notificationBuilder
                         .setOngoing(true)
-                        .addAction(
-                                new NotificationCompat.Action(
-                                        getIconResourceId("ic_pause"),
-                                        getString(getResources().getIdentifier(
-                                                "notification_pause_button_label",
-                                                "string",
-                                                getPackageName()
-                                                )
-                                        ),
-                                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                                this,
-                                                PlaybackStateCompat.ACTION_PAUSE
-                                        )
-                                )
-                        );
-
-                startForeground(currentNotificationId, builder.build());
+                        .setDeleteIntent(null)
+                        .addAction(notificationPauseAction);
+
+                startForeground(currentNotificationId, notificationBuilder.build());
             } else {
-                builder
+                notificationBuilder
                         .setOngoing(false)
-                        .setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                this,
-                                PlaybackStateCompat.ACTION_STOP
-                        ))
-                        .addAction(
-                                new NotificationCompat.Action(
-                                        getIconResourceId("ic_play"),
-                                        getString(getResources().getIdentifier(
-                                                "notification_play_button_label",
-                                                "string",
-                                                getPackageName()
-                                                )
-                                        ),
-                                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                                this,
-                                                PlaybackStateCompat.ACTION_PLAY
-                                        )
-                                )
-                        );
-                NotificationManagerCompat.from(this).notify(currentNotificationId, builder.build());
+                        .setDeleteIntent(notificationStopIntent)
+                        .addAction(notificationPlayAction);
+                NotificationManagerCompat.from(this).notify(currentNotificationId, notificationBuilder.build());
             }
+
+            notificationBuffering = showBuffering;
+            notificationContentText = contentText;
+            notificationContentTitle = contentTitle;
+            notificationLargeIcon = largeIcon;
+            notificationPlaying = playing;
+            notificationPosted = true;
+            metrics.count(ROILPlaybackMetrics.COUNTER_NOTIFICATION_POSTS);
+            metrics.record(ROILPlaybackMetrics.SPAN_NOTIFICATION_BUILD, buildStart);
         }
     }
 
+    /**
+     * Resolves the notification resources, pending intents and actions and creates the channel and the builder, once
+     * per service lifetime.
+     */
+    private void initNotification() {
+        String appName = getString(getResourceId("app_name", "string"));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int importance = NotificationManager.IMPORTANCE_DEFAULT;
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, appName, importance);
+            channel.setDescription(appName);
+            NotificationManager notificationManager = this.getSystemService(NotificationManager.class);
+            notificationManager.createNotificationChannel(channel);
+        }
+
+        PendingIntent pauseIntent = MediaButtonReceiver.buildMediaButtonPendingIntent(
+                this,
+                PlaybackStateCompat.ACTION_PAUSE
+        );
+        notificationPauseAction = new NotificationCompat.Action(
+                getResourceId("ic_pause", "drawable"),
+                getString(getResourceId("notification_pause_button_label", "string")),
+                pauseIntent
+        );
+        notificationPlayAction = new NotificationCompat.Action(
+                getResourceId("ic_play", "drawable"),
+                getString(getResourceId("notification_play_button_label", "string")),
+                MediaButtonReceiver.buildMediaButtonPendingIntent(this, PlaybackStateCompat.ACTION_PLAY)
+        );
+        notificationBufferingLabel = getString(getResourceId("notification_buffering_label", "string"));
+        notificationStopIntent = MediaButtonReceiver.buildMediaButtonPendingIntent(
+                this,
+                PlaybackStateCompat.ACTION_STOP
+        );
+
+        notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                .setSmallIcon(getResourceId(getString(getResourceId("notification_app_icon", "string")), "drawable"))
+                .setOnlyAlertOnce(true);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            notificationBuilder.setStyle(
+                    new androidx.media.app.NotificationCompat.MediaStyle()
+                            .setMediaSession(mediaSession.getSessionToken())
+                            .setShowActionsInCompactView(0)
+                            .setShowCancelButton(true)
+                            .setCancelButtonIntent(pauseIntent)
+            );
+        }
+    }
+
+    /**
+     * Loads artwork that isn't in the memory cache yet, such as that of a queue item past the ones the plugin preloads,
+     * and publishes the metadata again once it arrives if its key is still the published one.
+     */
+    private void loadArtwork(String artworkKey) {
+        if (artworkKey.equals(artworkLoadKey)) {
+            return;
+        }
+        if (artworkLoad != null) {
+            artworkLoad.cancel(true);
+        }
+
+        artworkLoadKey = artworkKey;
+        artworkLoad = artworkExecutor.submit(() -> {
+            try {
+                if (ROILArtworkCache.getInstance(this).get(artworkKey) == null) {
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            playbackHandler.post(() -> {
+                if (artworkKey.equals(artworkLoadKey)) {
+                    artworkLoad = null;
+                    artworkLoadKey = null;
+                }
+                if (artworkKey.equals(metadataArtworkKey)) {
+                    setSessionMetadata(metadataArtist, metadataTitle, metadataAlbum, metadataDuration, artworkKey);
+                }
+            });
+        });
+    }
+
+    private void onPlayerCompletion(ROILPlayer completedPlayer) {
+        if (completedPlayer != player) {
+            return;
+        }
+
+        // Finished media starts over next time, its position isn't saved again until it is played
+        if (currentUri != null) {
+            resumePositions.remove(currentUri.toString());
+            currentUriCompleted = true;
+        }
+
+        if (nextPlayerPrepared) {
+            // The engine has already started the chained next player, only the bookkeeping is left
+            advanceToNextPlayer();
+            applyPlaybackSpeed();
+            scheduleProgressUpdates();
+            buildNotification();
+        } else if (queueIndex >= 0 && queueIndex + 1 < queue.size()) {
+            prepareQueueItem(queueIndex + 1, true);
+        } else {
+            clearProgressUpdates();
+            PlaybackStateCompat playbackState = new PlaybackStateCompat.Builder()
+                    .setActions(SUPPORTED_PLAYBACK_ACTIONS)
+                    .setState(PlaybackStateCompat.STATE_PAUSED, player.getDuration(), 1.0f)
+                    .build();
+
+            mediaSession.setPlaybackState(playbackState);
+            mediaSession.sendSessionEvent(ROILBackgroundMediaPlayer.SESSION_EVENT_COMPLETION, null);
+            resumePositions.flush();
+        }
+    }
+
+    /**
+     * A player in the error state is never reused as is: it is released, and the current player is replaced by an idle
+     * one until the next prepare.
+     */
+    private void onPlayerError(ROILPlayer errorPlayer, String message) {
+        if (errorPlayer == nextPlayer) {
+            releaseNextPlayer();
+        } else if (errorPlayer == player) {
+            clearProgressUpdates();
+            releaseNextPlayer();
+            player.release();
+            player = null;
+            player = createPlayer();
+            buffering = false;
+            pendingSeekPosition = -1;
+            playerPrepared = false;
+            playWhenPrepared = false;
+            metrics.cancel(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+
+            PlaybackStateCompat playbackState = new PlaybackStateCompat.Builder()
+                    .setActions(SUPPORTED_PLAYBACK_ACTIONS)
+                    .setErrorMessage(PlaybackStateCompat.ERROR_CODE_UNKNOWN_ERROR, message)
+                    .setState(PlaybackStateCompat.STATE_ERROR, 0, 0.0f)
+                    .build();
+            mediaSession.setPlaybackState(playbackState);
+        }
+    }
+
+    private void onPlayerPrepared() {
+        metrics.end(ROILPlaybackMetrics.SPAN_PREPARE);
+        playerPrepared = true;
+        if (pendingSeekPosition >= 0) {
+            player.seekTo(pendingSeekPosition);
+            pendingSeekPosition = -1;
+        }
+
+        if (playWhenPrepared) {
+            playWhenPrepared = false;
+            mediaSessionCallback.onPlay();
+        }
+        prepareNextPlayer();
+    }
+
+    private void onQueueItemChanged() {
+        setSessionMetadata(queue.get(queueIndex).getDescription());
+        publishPlaybackState();
+    }
+
+    /**
+     * Pre-buffers the next queue item in a second player and chains it to the current one, so the engine moves on to it
+     * without a gap once the current item completes.
+     */
+    private void prepareNextPlayer() {
+        releaseNextPlayer();
+        if (queueIndex < 0 || queueIndex + 1 >= queue.size()) {
+            return;
+        }
+
+        nextPlayer = createPlayer();
+        try {
+            nextPlayer.prepareAsync(queue.get(queueIndex + 1).getDescription().getMediaUri());
+        } catch (IOException e) {
+            releaseNextPlayer();
+        }
+    }
+
+    /**
+     * Prepares the uri on a new player. Each call supersedes the previous ones: their players are released, so a
+     * prepare completion from one of them is never delivered.
+     *
+     * @return false if the player couldn't start preparing, in which case the error state is published
+     */
+    private boolean preparePlayer(Uri uri, boolean playWhenPrepared) {
+        saveResumePosition();
+        releaseNextPlayer();
+        if (player != null) {
+            player.release();
+            player = null;
+        }
+        currentUri = uri;
+        currentUriCompleted = false;
+
+        buffering = false;
+        bufferingPercent = -1;
+        pendingSeekPosition = -1;
+        playerPrepared = false;
+        this.playWhenPrepared = playWhenPrepared;
+        if (!playWhenPrepared) {
+            metrics.cancel(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+        }
+        metrics.restart(ROILPlaybackMetrics.SPAN_PREPARE);
+        player = createPlayer();
+        try {
+            player.prepareAsync(uri);
+        } catch (IOException e) {
+            e.printStackTrace();
+            onPlayerError(player, e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    private void prepareQueueItem(int index, boolean playWhenPrepared) {
+        queueIndex = index;
+        if (preparePlayer(queue.get(index).getDescription().getMediaUri(), playWhenPrepared)) {
+            onQueueItemChanged();
+        } else {
+            // Publishing the state of the idle replacement player would hide the error
+            setSessionMetadata(queue.get(index).getDescription());
+        }
+    }
+
+    private void publishPlaybackState() {
+        int playbackState = getCurrentPlaybackState();
+        setPlaybackState(playbackState,
+                playbackState == PlaybackStateCompat.STATE_PLAYING ? getPlaybackSpeed() : 0.0f);
+    }
+
+    /**
+     * Publishes the current playback state once. Only when periodic progress updates are enabled is it re-published on
+     * every tick, otherwise controllers extrapolate the position from the state's update time and playback speed.
+     */
     private void scheduleProgressUpdates() {
-        progressUpdatesTask = new TimerTask() {
-            @Override
-            public void run() {
-                int playbackState = player.isPlaying() ? PlaybackStateCompat.STATE_PLAYING :
-                        PlaybackStateCompat.STATE_PAUSED;
-                setPlaybackState(playbackState, getPlaybackSpeed());
+        clearProgressUpdates();
+        playbackHandler.postDelayed(resumePositionsRunnable, RESUME_POSITIONS_SAVE_INTERVAL_MS);
+        if (periodicProgressUpdates) {
+            playbackHandler.post(progressUpdatesRunnable);
+        } else {
+            publishPlaybackState();
+        }
+    }
+
+    private void releaseNextPlayer() {
+        if (nextPlayer != null) {
+            if (nextPlayerPrepared && player != null) {
+                player.setNextPlayer(null);
             }
-        };
-        progressUpdatesTimer = new Timer();
-        progressUpdatesTimer.scheduleAtFixedRate(progressUpdatesTask, 0, 500);
+            nextPlayer.release();
+            nextPlayer = null;
+            nextPlayerPrepared = false;
+        }
+    }
+
+    /**
+     * Missing targets are passed as -1 so the factory keeps their current value.
+     */
+    private void setBufferingPolicy(Bundle params) {
+        playerFactory.setBufferingPolicy(
+                params.getInt(ROILBackgroundMediaPlayer.COMMAND_SET_BUFFERING_POLICY_MIN_BUFFER_PARAM_NAME, -1),
+                params.getInt(ROILBackgroundMediaPlayer.COMMAND_SET_BUFFERING_POLICY_MAX_BUFFER_PARAM_NAME, -1),
+                params.getInt(ROILBackgroundMediaPlayer.COMMAND_SET_BUFFERING_POLICY_BUFFER_FOR_PLAYBACK_PARAM_NAME, -1),
+                params.getInt(
+                        ROILBackgroundMediaPlayer.COMMAND_SET_BUFFERING_POLICY_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_PARAM_NAME,
+                        -1
+                )
+        );
+    }
+
+    /**
+     * Records the position of the current media in memory only, resumePositions.flush() writes it out.
+     */
+    private void saveResumePosition() {
+        if (currentUri != null && !currentUriCompleted && player != null && playerPrepared) {
+            resumePositions.put(currentUri.toString(), player.getCurrentPosition());
+        }
     }
 
-    private void setPlaybackState(int newState, float playbackSpeed) {
+    void setPlaybackState(int newState, float playbackSpeed) {
+        long updateStart = ROILPlaybackMetrics.now();
         PlaybackStateCompat playbackState = new PlaybackStateCompat.Builder()
+                .setActions(SUPPORTED_PLAYBACK_ACTIONS)
+                .setActiveQueueItemId(queueIndex >= 0 ? queue.get(queueIndex).getQueueId() :
+                        MediaSessionCompat.QueueItem.UNKNOWN_ID)
                 .setState(newState, player.getCurrentPosition(), playbackSpeed)
                 .build();
 
         mediaSession.setPlaybackState(playbackState);
+        metrics.record(ROILPlaybackMetrics.SPAN_SESSION_UPDATE, updateStart);
+    }
+
+    private void setQueue(List<Bundle> items, int startIndex) {
+        clearQueue();
+        for (int i = 0; i < items.size(); i++) {
+            Bundle item = items.get(i);
+            String src = item.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_SRC_PARAM_NAME);
+            String imageUrl = item.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_IMAGE_URL_PARAM_NAME);
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId(src)
+                    .setMediaUri(Uri.parse(src))
+                    .setSubtitle(item.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_ARTIST_PARAM_NAME))
+                    .setTitle(item.getString(ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_QUEUE_ITEM_TITLE_PARAM_NAME))
+                    .setIconUri(imageUrl != null ? Uri.parse(imageUrl) : null)
+                    .build();
+            queue.add(new MediaSessionCompat.QueueItem(description, i));
+        }
+
+        if (!queue.isEmpty()) {
+            mediaSession.setQueue(queue);
+            notifyChildrenChanged(MEDIA_ROOT_ID);
+            prepareQueueItem(Math.max(0, Math.min(startIndex, queue.size() - 1)), false);
+        }
+    }
+
+    private void setRequestedPlaybackSpeed(float playbackSpeed) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            mediaSessionCallback.onPlay();
+            return;
+        }
+
+        requestedPlaybackSpeed = playbackSpeed;
+        if (player.isPlaying()) {
+            applyPlaybackSpeed();
+            scheduleProgressUpdates();
+        } else {
+            // Setting the playback params starts a MediaPlayer anyway, so go through the regular play path
+            mediaSessionCallback.onPlay();
+        }
+    }
+
+    /**
+     * Publishes the metadata of a queue item or browse node, whose subtitle is the artist and icon uri the artwork key.
+     */
+    private void setSessionMetadata(MediaDescriptionCompat description) {
+        setSessionMetadata(
+                description.getSubtitle() != null ? description.getSubtitle().toString() : null,
+                description.getTitle() != null ? description.getTitle().toString() : null,
+                null,
+                -1,
+                description.getIconUri() != null ? description.getIconUri().toString() : null
+        );
+    }
+
+    /**
+     * Publishes the metadata only if a field differs from the published one. The plugin only sends the artwork key, and
+     * the bitmap comes from the artwork cache, with the one already published kept while the key doesn't change. Artwork
+     * missing from the cache is loaded in the background and published with the metadata once it arrives.
+     */
+    private void setSessionMetadata(String artist, String title, String album, long duration, String artworkKey) {
+        long updateStart = ROILPlaybackMetrics.now();
+        Bitmap artwork = null;
+        if (artworkKey != null) {
+            artwork = ROILArtworkCache.getInstance(this).getCached(artworkKey);
+            if (artwork == null && artworkKey.equals(metadataArtworkKey)) {
+                artwork = metadataArtwork;
+            }
+            if (artwork == null) {
+                loadArtwork(artworkKey);
+            }
+        }
+
+        if (metadataPublished && duration == metadataDuration && artwork == metadataArtwork &&
+                TextUtils.equals(album, metadataAlbum) &&
+                TextUtils.equals(artist, metadataArtist) &&
+                TextUtils.equals(artworkKey, metadataArtworkKey) &&
+                TextUtils.equals(title, metadataTitle)) {
+            return;
+        }
+
+        MediaMetadataCompat.Builder metadataBuilder = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title);
+        if (duration >= 0) {
+            metadataBuilder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration);
+        }
+        if (artworkKey != null) {
+            // Controllers that load artwork themselves use the key. The bitmap, downsampled to the notification large
+            // icon size, is what the notification shows and what other controllers receive, parcelled with the metadata
+            metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ART_URI, artworkKey);
+            if (artwork != null) {
+                metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork);
+            }
+        }
+
+        mediaSession.setMetadata(metadataBuilder.build());
+        metadataAlbum = album;
+        metadataArtist = artist;
+        metadataArtwork = artwork;
+        metadataArtworkKey = artworkKey;
+        metadataDuration = duration;
+        metadataPublished = true;
+        metadataTitle = title;
+        metrics.record(ROILPlaybackMetrics.SPAN_SESSION_UPDATE, updateStart);
+
+        if (currentNotificationId != 0 && notificationPosted) {
+            buildNotification();
+        }
     }
 }
@@ -3,15 +3,19 @@ package com.roil.cordova.plugin.backgroundmediaplayer;
 import android.content.ComponentName;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
+import androidx.annotation.Nullable;
+
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginResult;
@@ -20,60 +24,314 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ROILBackgroundMediaPlayer extends CordovaPlugin {
+    static final String COMMAND_PAUSE = "pause";
+    static final String COMMAND_PAUSE_POSITION_PARAM_NAME = "position";
+    static final String COMMAND_PAUSE_STATE_PARAM_NAME = "state";
+    static final String COMMAND_PAUSE_SESSION = "pauseSession";
+    static final String COMMAND_PLAY = "play";
+    static final String COMMAND_PLAY_POSITION_PARAM_NAME = "position";
+    static final String COMMAND_PLAY_SESSION = "playSession";
+    static final String COMMAND_RELEASE_SESSION = "releaseSession";
+    static final String COMMAND_SESSION_ID_PARAM_NAME = "sessionId";
+    static final String COMMAND_SET_BROWSE_TREE = "setBrowseTree";
+    static final String COMMAND_SET_BROWSE_TREE_PARENT_ID_PARAM_NAME = "parentId";
+    static final String COMMAND_SET_BUFFERING_POLICY = "setBufferingPolicy";
+    static final String COMMAND_SET_BUFFERING_POLICY_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_PARAM_NAME =
+            "bufferForPlaybackAfterRebufferMs";
+    static final String COMMAND_SET_BUFFERING_POLICY_BUFFER_FOR_PLAYBACK_PARAM_NAME = "bufferForPlaybackMs";
+    static final String COMMAND_SET_BUFFERING_POLICY_MAX_BUFFER_PARAM_NAME = "maxBufferMs";
+    static final String COMMAND_SET_BUFFERING_POLICY_MIN_BUFFER_PARAM_NAME = "minBufferMs";
+    static final String COMMAND_SET_MEDIA_SOURCE = "setMediaSource";
+    static final String COMMAND_SET_MEDIA_SOURCE_RESUME_PARAM_NAME = "resume";
+    static final String COMMAND_SET_MEDIA_SOURCE_RESUME_POSITION_PARAM_NAME = "resumePosition";
+    static final String COMMAND_SET_MEDIA_SOURCE_URI_PARAM_NAME = "uri";
+    static final String COMMAND_SET_SESSION_SOURCE = "setSessionSource";
+    static final String COMMAND_SET_SESSION_SOURCE_PRIORITY_PARAM_NAME = "priority";
+    static final String COMMAND_SET_SESSION_SOURCE_URI_PARAM_NAME = "uri";
+    static final String COMMAND_SKIP_TO_NEXT = "skipToNext";
+    static final String COMMAND_SKIP_TO_PREVIOUS = "skipToPrevious";
     static final String CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME = "setSessionMetadata";
-    static final String CUSTOM_ACTION_SET_SESSION_METADATA_ICON_PARAM_NAME = "icon";
+    static final String CUSTOM_ACTION_SET_SESSION_METADATA_ALBUM_PARAM_NAME = "album";
+    static final String CUSTOM_ACTION_SET_SESSION_METADATA_ARTIST_PARAM_NAME = "artist";
+    static final String CUSTOM_ACTION_SET_SESSION_METADATA_ARTWORK_KEY_PARAM_NAME = "artworkKey";
+    static final String CUSTOM_ACTION_SET_SESSION_METADATA_DURATION_PARAM_NAME = "duration";
     static final String CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME = "title";
     static final String CUSTOM_ACTION_SET_PLAYBACK_SPEED_ACTION_NAME = "setPlaybackSpeed";
     static final String CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME = "playbackSpeed";
+    static final String CUSTOM_ACTION_SET_QUEUE_ACTION_NAME = "setQueue";
+    static final String CUSTOM_ACTION_SET_QUEUE_ITEM_ARTIST_PARAM_NAME = "artist";
+    static final String CUSTOM_ACTION_SET_QUEUE_ITEM_IMAGE_URL_PARAM_NAME = "imageUrl";
+    static final String CUSTOM_ACTION_SET_QUEUE_ITEM_SRC_PARAM_NAME = "src";
+    static final String CUSTOM_ACTION_SET_QUEUE_ITEM_TITLE_PARAM_NAME = "title";
+    static final String CUSTOM_ACTION_SET_QUEUE_ITEMS_PARAM_NAME = "items";
+    static final String CUSTOM_ACTION_SET_QUEUE_START_INDEX_PARAM_NAME = "startIndex";
+    static final String SESSION_EVENT_BUFFERING_UPDATE = "bufferingUpdate";
+    static final String SESSION_EVENT_BUFFERING_UPDATE_PERCENT_PARAM_NAME = "percent";
+    static final String SESSION_EVENT_COMPLETION = "completion";
 
+    private static final int ARTWORK_LOADER_THREAD_COUNT = 2;
+    private static final long EVENTS_DEFAULT_INTERVAL_MS = 1000;
+    private static final long EVENTS_MIN_INTERVAL_MS = 100;
     private static final int MICROSECONDS_PER_SECOND = 1000;
+    private static final String PLAYER_ENGINE_MEDIA3 = "media3";
     private static final int PLAY_ACTION_PLAYBACK_SPEED_INDEX = 1;
     private static final int PLAY_ACTION_POSITION_INDEX = 0;
+    private static final int PLAY_SESSION_ACTION_POSITION_INDEX = 1;
+    private static final int PREFETCH_ACTION_OPTIONS_INDEX = 1;
+    private static final int PREFETCH_ACTION_SOURCES_INDEX = 0;
+    private static final int QUEUE_ARTWORK_PRELOAD_LIMIT = 20;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int SESSION_ACTION_SESSION_ID_INDEX = 0;
+    private static final int SET_BROWSE_TREE_ACTION_NODES_INDEX = 0;
+    private static final int SET_BROWSE_TREE_ACTION_PARENT_ID_INDEX = 1;
+    private static final int SET_BUFFERING_POLICY_ACTION_POLICY_INDEX = 0;
     private static final int SET_MEDIA_SOURCE_ACTION_IMAGE_URL_INDEX = 2;
+    private static final int SET_METADATA_ACTION_METADATA_INDEX = 0;
+    private static final int SET_MEDIA_SOURCE_ACTION_RESUME_INDEX = 3;
     private static final int SET_MEDIA_SOURCE_ACTION_TITLE_INDEX = 1;
     private static final int SET_MEDIA_SOURCE_ACTION_URL_INDEX = 0;
+    private static final int SET_QUEUE_ACTION_ITEMS_INDEX = 0;
+    private static final int SET_SESSION_SOURCE_ACTION_PRIORITY_INDEX = 2;
+    private static final int SET_SESSION_SOURCE_ACTION_URL_INDEX = 1;
+    private static final int SET_QUEUE_ACTION_START_INDEX_INDEX = 1;
+    private static final int SUBSCRIBE_ACTION_OPTIONS_INDEX = 0;
+    private static final String TITLE_ARTIST_SEPARATOR = " - ";
+
+    private final ExecutorService artworkExecutor = Executors.newFixedThreadPool(ARTWORK_LOADER_THREAD_COUNT);
+    private final Handler eventHandler = new Handler(Looper.getMainLooper());
 
-    private Bitmap largeIcon;
+    private String album;
+    private String artist;
+    private String artworkKey;
+    private ArtworkLoad artworkLoad;
+    private ROILCommandQueue commandQueue;
     private Context context;
+    private long duration = -1;
+    private CallbackContext eventCallbackContext;
+    private long eventInterval = EVENTS_DEFAULT_INTERVAL_MS;
+    private JSONObject heldBufferingEvent;
+    private long lastPositionEvent = -1;
+    private int mediaSourceGeneration = 0;
     private MediaBrowserCompat mediaBrowser;
     private MediaControllerCompat mediaController;
-    private String title = "";
-    private Uri uri;
+    private ROILPlaybackMetrics metrics;
+    private ROILPrefetcher prefetcher;
+    private ROILPrefetcher queueArtworkPrefetcher;
+    private String title;
+    private boolean webViewPaused = false;
+
+    private static class ArtworkLoad {
+        private Future<?> future;
+        private int generation;
+        private final String imageUrl;
+
+        private ArtworkLoad(String imageUrl, int generation) {
+            this.imageUrl = imageUrl;
+            this.generation = generation;
+        }
+    }
+
+    private final Runnable positionEventsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            PlaybackStateCompat playbackState = mediaController.getPlaybackState();
+            long position = getExtrapolatedPosition(playbackState);
+            if (position != lastPositionEvent) {
+                lastPositionEvent = position;
+                sendEvent("position", getPositionAndState(playbackState));
+            }
+
+            schedulePositionEvents();
+        }
+    };
+
+    private final MediaControllerCompat.Callback controllerCallback = new MediaControllerCompat.Callback() {
+        @Override
+        public void onPlaybackStateChanged(PlaybackStateCompat playbackState) {
+            if (playbackState == null) {
+                return;
+            }
+
+            if (playbackState.getState() == PlaybackStateCompat.STATE_ERROR) {
+                JSONObject error = new JSONObject();
+                try {
+                    error.put("message", playbackState.getErrorMessage() != null ?
+                            playbackState.getErrorMessage().toString() : null);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                sendEvent("error", error);
+            } else {
+                lastPositionEvent = getExtrapolatedPosition(playbackState);
+                sendEvent("state", getPositionAndState(playbackState));
+            }
+            schedulePositionEvents();
+        }
+
+        @Override
+        public void onSessionEvent(String event, Bundle extras) {
+            if (SESSION_EVENT_BUFFERING_UPDATE.equals(event)) {
+                JSONObject bufferingEvent = new JSONObject();
+                try {
+                    bufferingEvent.put("percent", extras.getInt(SESSION_EVENT_BUFFERING_UPDATE_PERCENT_PARAM_NAME));
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+
+                if (webViewPaused) {
+                    heldBufferingEvent = bufferingEvent;
+                } else {
+                    sendEvent("buffering", bufferingEvent);
+                }
+            } else if (SESSION_EVENT_COMPLETION.equals(event)) {
+                JSONObject completionEvent = new JSONObject();
+                String sessionId = extras != null ? extras.getString(COMMAND_SESSION_ID_PARAM_NAME) : null;
+                if (sessionId != null) {
+                    try {
+                        completionEvent.put("sessionId", sessionId);
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                    }
+                }
+                sendEvent("completion", completionEvent);
+            }
+        }
+    };
 
     private final MediaBrowserCompat.ConnectionCallback connectionCallbacks =
             new MediaBrowserCompat.ConnectionCallback() {
                 @Override
                 public void onConnected() {
+                    metrics.end(ROILPlaybackMetrics.SPAN_CONNECT);
                     MediaSessionCompat.Token token = mediaBrowser.getSessionToken();
+                    releaseMediaController();
                     try {
                         mediaController = new MediaControllerCompat(context, token);
-                        mediaController.getTransportControls().prepareFromUri(uri, null);
-                        setSessionMetadata();
+                        mediaController.registerCallback(controllerCallback, eventHandler);
                     } catch (RemoteException e) {
                         e.printStackTrace();
                     }
+                    commandQueue.onConnected();
+                }
+
+                @Override
+                public void onConnectionFailed() {
+                    onConnectionLost("Could not connect to the playback service");
+                }
+
+                @Override
+                public void onConnectionSuspended() {
+                    onConnectionLost("Lost the connection to the playback service");
                 }
             };
 
+    private final Runnable reconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            metrics.restart(ROILPlaybackMetrics.SPAN_CONNECT);
+            mediaBrowser.connect();
+        }
+    };
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         switch (action) {
+            case "cancelPrefetch":
+                prefetcher.cancel();
+                callbackContext.success();
+                return true;
+            case "getMetrics":
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, metrics.toJSON()));
+                return true;
+            case "getPosition":
+                this.getPosition(callbackContext);
+                return true;
             case "pause":
                 this.pause(callbackContext);
                 return true;
+            case "pauseSession":
+                commandQueue.enqueue(COMMAND_PAUSE_SESSION, getSessionParams(args), callbackContext);
+                return true;
             case "play":
-                Double position = args.getDouble(PLAY_ACTION_POSITION_INDEX) * MICROSECONDS_PER_SECOND;
+                Integer position = args.isNull(PLAY_ACTION_POSITION_INDEX) ? null :
+                        (int) (args.getDouble(PLAY_ACTION_POSITION_INDEX) * MICROSECONDS_PER_SECOND);
                 double playbackSpeed = args.getDouble(PLAY_ACTION_PLAYBACK_SPEED_INDEX);
-                this.play(position.intValue(), playbackSpeed, callbackContext);
+                this.play(position, playbackSpeed, callbackContext);
+                return true;
+            case "playSession":
+                Bundle playSessionParams = getSessionParams(args);
+                if (!args.isNull(PLAY_SESSION_ACTION_POSITION_INDEX)) {
+                    playSessionParams.putInt(COMMAND_PLAY_POSITION_PARAM_NAME,
+                            (int) (args.getDouble(PLAY_SESSION_ACTION_POSITION_INDEX) * MICROSECONDS_PER_SECOND));
+                }
+                commandQueue.enqueue(COMMAND_PLAY_SESSION, playSessionParams, callbackContext);
+                return true;
+            case "prefetch":
+                JSONArray sources = args.getJSONArray(PREFETCH_ACTION_SOURCES_INDEX);
+                JSONObject options = args.optJSONObject(PREFETCH_ACTION_OPTIONS_INDEX);
+                this.prefetch(sources, options != null ? options : new JSONObject(), callbackContext);
+                return true;
+            case "releaseSession":
+                commandQueue.enqueue(COMMAND_RELEASE_SESSION, getSessionParams(args), callbackContext);
+                return true;
+            case "setBrowseTree":
+                JSONArray nodes = args.getJSONArray(SET_BROWSE_TREE_ACTION_NODES_INDEX);
+                String parentId = args.isNull(SET_BROWSE_TREE_ACTION_PARENT_ID_INDEX) ? ROILBrowseTree.ROOT_ID :
+                        args.getString(SET_BROWSE_TREE_ACTION_PARENT_ID_INDEX);
+                this.setBrowseTree(nodes, parentId, callbackContext);
+                return true;
+            case "setBufferingPolicy":
+                this.setBufferingPolicy(args.getJSONObject(SET_BUFFERING_POLICY_ACTION_POLICY_INDEX), callbackContext);
                 return true;
             case "setMediaSource":
                 String url = args.getString(SET_MEDIA_SOURCE_ACTION_URL_INDEX);
-                String title = args.getString(SET_MEDIA_SOURCE_ACTION_TITLE_INDEX);
-                String imageUrl = args.getString(SET_MEDIA_SOURCE_ACTION_IMAGE_URL_INDEX);
-                this.setMediaSource(Uri.parse(url), title, imageUrl, callbackContext);
+                String title = args.isNull(SET_MEDIA_SOURCE_ACTION_TITLE_INDEX) ? "" :
+                        args.getString(SET_MEDIA_SOURCE_ACTION_TITLE_INDEX);
+                String imageUrl = args.isNull(SET_MEDIA_SOURCE_ACTION_IMAGE_URL_INDEX) ? null :
+                        args.getString(SET_MEDIA_SOURCE_ACTION_IMAGE_URL_INDEX);
+                boolean resume = args.optBoolean(SET_MEDIA_SOURCE_ACTION_RESUME_INDEX, false);
+                this.setMediaSource(Uri.parse(url), title, imageUrl, resume, callbackContext);
+                return true;
+            case "setMetadata":
+                this.setMetadata(args.getJSONObject(SET_METADATA_ACTION_METADATA_INDEX), callbackContext);
+                return true;
+            case "setQueue":
+                JSONArray items = args.getJSONArray(SET_QUEUE_ACTION_ITEMS_INDEX);
+                int startIndex = args.optInt(SET_QUEUE_ACTION_START_INDEX_INDEX, 0);
+                this.setQueue(items, startIndex, callbackContext);
+                return true;
+            case "setSessionSource":
+                Bundle setSessionSourceParams = getSessionParams(args);
+                setSessionSourceParams.putParcelable(COMMAND_SET_SESSION_SOURCE_URI_PARAM_NAME,
+                        Uri.parse(args.getString(SET_SESSION_SOURCE_ACTION_URL_INDEX)));
+                setSessionSourceParams.putInt(COMMAND_SET_SESSION_SOURCE_PRIORITY_PARAM_NAME,
+                        args.optInt(SET_SESSION_SOURCE_ACTION_PRIORITY_INDEX, 0));
+                commandQueue.enqueue(COMMAND_SET_SESSION_SOURCE, setSessionSourceParams, callbackContext);
+                return true;
+            case "skipToNext":
+                commandQueue.enqueue(COMMAND_SKIP_TO_NEXT, new Bundle(), callbackContext);
+                return true;
+            case "skipToPrevious":
+                commandQueue.enqueue(COMMAND_SKIP_TO_PREVIOUS, new Bundle(), callbackContext);
+                return true;
+            case "subscribe":
+                JSONObject subscribeOptions = args.optJSONObject(SUBSCRIBE_ACTION_OPTIONS_INDEX);
+                long interval = subscribeOptions != null ?
+                        subscribeOptions.optLong("interval", EVENTS_DEFAULT_INTERVAL_MS) : EVENTS_DEFAULT_INTERVAL_MS;
+                eventHandler.post(() -> subscribe(Math.max(EVENTS_MIN_INTERVAL_MS, interval), callbackContext));
+                return true;
+            case "unsubscribe":
+                eventHandler.post(() -> {
+                    unsubscribe();
+                    callbackContext.success();
+                });
                 return true;
         }
 
@@ -83,20 +341,134 @@ public class ROILBackgroundMediaPlayer extends CordovaPlugin {
     @Override
     protected void pluginInitialize() {
         context = cordova.getContext();
+        metrics = ROILPlaybackMetrics.getInstance(context);
+        metrics.restart(ROILPlaybackMetrics.SPAN_CONNECT);
+        prefetcher = new ROILPrefetcher(context, usesMedia3Engine(context) || ROILMediaPlayerEngine.readsMediaCache());
+        queueArtworkPrefetcher = new ROILPrefetcher(context, false);
         mediaBrowser = new MediaBrowserCompat(
             context,
             new ComponentName(context, ROILBackgroundMediaPlaybackService.class),
             connectionCallbacks,
             null
         );
+        commandQueue = new ROILCommandQueue(mediaBrowser);
         mediaBrowser.connect();
     }
 
-    private void pause(CallbackContext callbackContext) {
-        PlaybackStateCompat playbackState = mediaController.getPlaybackState();
-        float position = playbackState.getPosition() / 1000.0f;
+    @Override
+    public void onDestroy() {
+        eventHandler.removeCallbacks(positionEventsRunnable);
+        eventHandler.removeCallbacks(reconnectRunnable);
+        releaseMediaController();
+        artworkExecutor.shutdownNow();
+        prefetcher.shutdown();
+        queueArtworkPrefetcher.shutdown();
+    }
+
+    /**
+     * Position events stop while the WebView is paused and buffering events are held back, only the latest one is
+     * delivered on resume along with the current state. State changes, completion and errors are still delivered
+     * straight away.
+     */
+    @Override
+    public void onPause(boolean multitasking) {
+        webViewPaused = true;
+        eventHandler.removeCallbacks(positionEventsRunnable);
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        webViewPaused = false;
+        if (heldBufferingEvent != null) {
+            sendEvent("buffering", heldBufferingEvent);
+            heldBufferingEvent = null;
+        }
+
+        PlaybackStateCompat playbackState = mediaController != null ? mediaController.getPlaybackState() : null;
+        if (eventCallbackContext != null && playbackState != null) {
+            controllerCallback.onPlaybackStateChanged(playbackState);
+        }
+    }
+
+    /**
+     * Loads the artwork into the shared artwork cache on the shared executor. A load in flight or done for the same url
+     * is reused, any other load is cancelled, and a finished load is only published if no newer media source has been
+     * set in the meantime.
+     */
+    private synchronized void loadArtwork(String imageUrl, int generation) {
+        if (artworkLoad != null) {
+            if (artworkLoad.imageUrl.equals(imageUrl) &&
+                    (!artworkLoad.future.isDone() || imageUrl.equals(artworkKey))) {
+                artworkLoad.generation = generation;
+                return;
+            }
+
+            artworkLoad.future.cancel(true);
+            artworkLoad = null;
+        }
+
+        artworkKey = null;
+        if (imageUrl == null) {
+            return;
+        }
+
+        ArtworkLoad load = new ArtworkLoad(imageUrl, generation);
+        load.future = artworkExecutor.submit(() -> {
+            Bitmap bitmap = null;
+            try {
+                bitmap = ROILArtworkCache.getInstance(context).get(imageUrl);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            onArtworkLoaded(load, bitmap);
+        });
+        artworkLoad = load;
+    }
+
+    private void onArtworkLoaded(ArtworkLoad load, Bitmap bitmap) {
+        synchronized (this) {
+            if (load != artworkLoad || load.generation != mediaSourceGeneration) {
+                return;
+            }
+
+            artworkKey = bitmap != null ? load.imageUrl : null;
+        }
+
+        setSessionMetadata(null);
+    }
+
+    /**
+     * Fails the commands waiting on the service, whose replies will never come, and connects again after a delay so
+     * that a service that keeps failing isn't rebound in a tight loop.
+     */
+    private void onConnectionLost(String message) {
+        eventHandler.removeCallbacks(positionEventsRunnable);
+        releaseMediaController();
+        commandQueue.onConnectionLost(message);
+
+        mediaBrowser.disconnect();
+        eventHandler.removeCallbacks(reconnectRunnable);
+        eventHandler.postDelayed(reconnectRunnable, RECONNECT_DELAY_MS);
+    }
+
+    /**
+     * The service only publishes its state on transitions, so while playing the position is extrapolated from the time
+     * and playback speed of the last published state.
+     */
+    static long getExtrapolatedPosition(PlaybackStateCompat playbackState) {
+        long position = playbackState.getPosition();
+        if (playbackState.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            long elapsed = SystemClock.elapsedRealtime() - playbackState.getLastPositionUpdateTime();
+            position += (long) (elapsed * playbackState.getPlaybackSpeed());
+        }
+
+        return position;
+    }
+
+    private static JSONObject getPositionAndState(PlaybackStateCompat playbackState) {
+        float position = getExtrapolatedPosition(playbackState) / 1000.0f;
         String state = playbackState.getState() == PlaybackStateCompat.STATE_PLAYING ? "playing" : "paused";
-        mediaController.getTransportControls().stop();
 
         JSONObject result = new JSONObject();
         try {
@@ -106,50 +478,294 @@ public class ROILBackgroundMediaPlayer extends CordovaPlugin {
             e.printStackTrace();
         }
 
+        return result;
+    }
+
+    /**
+     * Reads the ANDROID_PLAYER_ENGINE preference, shared by the plugin and the playback service.
+     */
+    static boolean usesMedia3Engine(Context context) {
+        int playerEngineId = context.getResources().getIdentifier("player_engine", "string", context.getPackageName());
+        return playerEngineId != 0 && PLAYER_ENGINE_MEDIA3.equals(context.getString(playerEngineId));
+    }
+
+    /**
+     * Every session action takes the session id first.
+     */
+    private static Bundle getSessionParams(JSONArray args) throws JSONException {
+        Bundle sessionParams = new Bundle();
+        sessionParams.putString(COMMAND_SESSION_ID_PARAM_NAME, args.getString(SESSION_ACTION_SESSION_ID_INDEX));
+        return sessionParams;
+    }
+
+    private void getPosition(CallbackContext callbackContext) {
+        PlaybackStateCompat playbackState = mediaController != null ? mediaController.getPlaybackState() : null;
+        if (playbackState == null) {
+            callbackContext.error("The background player is not connected");
+            return;
+        }
+
+        JSONObject result = getPositionAndState(playbackState);
         callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
     }
 
-    private void play(int position, Double playbackSpeed, CallbackContext callbackContext) {
-        mediaController.getTransportControls().seekTo(position);
+    /**
+     * The service replies with the position and state it paused at, which is more accurate than the last published
+     * playback state.
+     */
+    private void pause(CallbackContext callbackContext) {
+        commandQueue.enqueue(COMMAND_PAUSE, new Bundle(), callbackContext);
+    }
+
+    /**
+     * A null position plays from where the player is, for example from the position restored by setMediaSource. Each
+     * play request restarts the time to first audio, the service only begins it for plays that don't come from JS.
+     */
+    private void play(Integer position, Double playbackSpeed, CallbackContext callbackContext) {
+        metrics.restart(ROILPlaybackMetrics.SPAN_TIME_TO_FIRST_AUDIO);
+
+        Bundle playParams = new Bundle();
+        if (position != null) {
+            playParams.putInt(COMMAND_PLAY_POSITION_PARAM_NAME, position);
+        }
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
+            playParams.putFloat(CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME, playbackSpeed.floatValue());
+        }
+        commandQueue.enqueue(COMMAND_PLAY, playParams, callbackContext);
+    }
+
+    private void releaseMediaController() {
+        if (mediaController != null) {
+            mediaController.unregisterCallback(controllerCallback);
+            mediaController = null;
+        }
+    }
+
+    /**
+     * Position events are only emitted while playing, at most once per interval and only when the position moved. Each
+     * event checks the current state again before scheduling the next one, so they stop with the first paused state.
+     */
+    private void schedulePositionEvents() {
+        eventHandler.removeCallbacks(positionEventsRunnable);
+        if (eventCallbackContext == null || webViewPaused || mediaController == null) {
+            return;
+        }
+
+        PlaybackStateCompat playbackState = mediaController.getPlaybackState();
+        if (playbackState != null && playbackState.getState() == PlaybackStateCompat.STATE_PLAYING &&
+                playbackState.getPlaybackSpeed() > 0) {
+            eventHandler.postDelayed(positionEventsRunnable, eventInterval);
+        }
+    }
+
+    private void sendEvent(String type, JSONObject event) {
+        if (eventCallbackContext == null) {
+            return;
+        }
+
+        try {
+            event.put("type", type);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+        result.setKeepCallback(true);
+        eventCallbackContext.sendPluginResult(result);
+    }
+
+    /**
+     * Replaces the event listener with the callback, which is kept open and receives every event until unsubscribe is
+     * called. The current state is sent straight away if the player is connected.
+     */
+    private void subscribe(long interval, CallbackContext callbackContext) {
+        unsubscribe();
+        eventCallbackContext = callbackContext;
+        eventInterval = interval;
 
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M &&
-                (playbackSpeed < 1.0f || playbackSpeed > 1.0f)) {
-            Bundle setPlaybackSpeedParams = new Bundle();
-            setPlaybackSpeedParams.putFloat(CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME, playbackSpeed.floatValue());
-            mediaController.getTransportControls().sendCustomAction(CUSTOM_ACTION_SET_PLAYBACK_SPEED_ACTION_NAME, setPlaybackSpeedParams);
+        PlaybackStateCompat playbackState = mediaController != null ? mediaController.getPlaybackState() : null;
+        if (playbackState != null) {
+            controllerCallback.onPlaybackStateChanged(playbackState);
         } else {
-            mediaController.getTransportControls().play();
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    private void unsubscribe() {
+        eventHandler.removeCallbacks(positionEventsRunnable);
+        if (eventCallbackContext != null) {
+            eventCallbackContext.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+            eventCallbackContext = null;
+        }
+        heldBufferingEvent = null;
+        lastPositionEvent = -1;
+    }
+
+    /**
+     * Warms the start of each source and its artwork in the background, so that passing one of them to setMediaSource
+     * later starts from cached data.
+     */
+    private void prefetch(JSONArray sources, JSONObject options, CallbackContext callbackContext) throws JSONException {
+        List<String> urls = new ArrayList<>(sources.length());
+        List<String> imageUrls = new ArrayList<>(sources.length());
+        for (int i = 0; i < sources.length(); i++) {
+            JSONObject source = sources.getJSONObject(i);
+            urls.add(source.isNull("src") ? null : source.getString("src"));
+            imageUrls.add(source.isNull("imageUrl") ? null : source.getString("imageUrl"));
         }
 
+        prefetcher.prefetch(
+                urls,
+                imageUrls,
+                options.optLong("maxBytesPerSource", ROILPrefetcher.DEFAULT_MAX_BYTES_PER_SOURCE),
+                options.optLong("maxTotalBytes", ROILPrefetcher.DEFAULT_MAX_TOTAL_BYTES),
+                options.optInt("concurrency", ROILPrefetcher.DEFAULT_CONCURRENCY)
+        );
         callbackContext.success();
     }
 
-    private void setMediaSource(Uri uri, String title, String imageUrl, CallbackContext callbackContext) {
-        this.title = title;
-        this.uri = uri;
+    /**
+     * Replaces the children of the parent in the shared browse tree, then has the service notify subscribed browsers
+     * that they changed. Only the parent id crosses to the service, however big the subtree is.
+     */
+    private void setBrowseTree(JSONArray nodes, String parentId, CallbackContext callbackContext) throws JSONException {
+        if (!ROILBrowseTree.getInstance().setChildren(parentId, nodes)) {
+            callbackContext.error("Unknown browse tree node " + parentId);
+            return;
+        }
+
+        Bundle setBrowseTreeParams = new Bundle();
+        setBrowseTreeParams.putString(COMMAND_SET_BROWSE_TREE_PARENT_ID_PARAM_NAME, parentId);
+        commandQueue.enqueue(COMMAND_SET_BROWSE_TREE, setBrowseTreeParams, callbackContext);
+    }
 
-        new Thread(() -> {
-            try {
-                largeIcon = BitmapFactory.decodeStream(new URL(imageUrl).openConnection().getInputStream());
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Only the targets present in the policy are changed. They apply from the next source prepared by the Media3
+     * engine, MediaPlayer manages its own buffering.
+     */
+    private void setBufferingPolicy(JSONObject policy, CallbackContext callbackContext) {
+        Bundle setBufferingPolicyParams = new Bundle();
+        String[] paramNames = {
+                COMMAND_SET_BUFFERING_POLICY_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_PARAM_NAME,
+                COMMAND_SET_BUFFERING_POLICY_BUFFER_FOR_PLAYBACK_PARAM_NAME,
+                COMMAND_SET_BUFFERING_POLICY_MAX_BUFFER_PARAM_NAME,
+                COMMAND_SET_BUFFERING_POLICY_MIN_BUFFER_PARAM_NAME
+        };
+        for (String paramName : paramNames) {
+            if (!policy.isNull(paramName)) {
+                setBufferingPolicyParams.putInt(paramName, policy.optInt(paramName, -1));
             }
+        }
+        commandQueue.enqueue(COMMAND_SET_BUFFERING_POLICY, setBufferingPolicyParams, callbackContext);
+    }
+
+    /**
+     * With resume, the player seeks to the position saved for the uri and the callback receives it in seconds.
+     */
+    private void setMediaSource(Uri uri, String title, String imageUrl, boolean resume,
+                                CallbackContext callbackContext) {
+        String[] artistAndTitle = splitTitle(title);
+        queueArtworkPrefetcher.cancel();
+        synchronized (this) {
+            album = null;
+            artist = artistAndTitle[0];
+            duration = -1;
+            this.title = artistAndTitle[1];
+            loadArtwork(imageUrl, ++mediaSourceGeneration);
+        }
+
+        Bundle setMediaSourceParams = new Bundle();
+        setMediaSourceParams.putParcelable(COMMAND_SET_MEDIA_SOURCE_URI_PARAM_NAME, uri);
+        setMediaSourceParams.putBoolean(COMMAND_SET_MEDIA_SOURCE_RESUME_PARAM_NAME, resume);
+        commandQueue.enqueue(COMMAND_SET_MEDIA_SOURCE, setMediaSourceParams, callbackContext);
+        setSessionMetadata(null);
+    }
+
+    /**
+     * Hands the whole queue to the service, which pre-buffers the next item for gapless transitions. The artwork of
+     * the first items is warmed into the shared artwork cache so the service can publish it on each transition. The
+     * warm-ups run apart from the artwork loads, so the cover of a later media source doesn't wait behind them.
+     */
+    private void setQueue(JSONArray items, int startIndex, CallbackContext callbackContext) throws JSONException {
+        // The queue items carry their own metadata, a pending load for a previous media source must not override it
+        synchronized (this) {
+            album = null;
+            artist = null;
+            duration = -1;
+            title = null;
+            loadArtwork(null, ++mediaSourceGeneration);
+        }
 
-            if (mediaBrowser.isConnected() && mediaController != null) {
-                setSessionMetadata();
+        ArrayList<Bundle> queueItems = new ArrayList<>(items.length());
+        List<String> preloadImageUrls = new ArrayList<>(QUEUE_ARTWORK_PRELOAD_LIMIT);
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            String imageUrl = item.isNull("imageUrl") ? null : item.getString("imageUrl");
+            String[] artistAndTitle = splitTitle(item.optString("title", ""));
+            Bundle queueItem = new Bundle();
+            queueItem.putString(CUSTOM_ACTION_SET_QUEUE_ITEM_ARTIST_PARAM_NAME, artistAndTitle[0]);
+            queueItem.putString(CUSTOM_ACTION_SET_QUEUE_ITEM_SRC_PARAM_NAME, item.getString("src"));
+            queueItem.putString(CUSTOM_ACTION_SET_QUEUE_ITEM_TITLE_PARAM_NAME, artistAndTitle[1]);
+            queueItem.putString(CUSTOM_ACTION_SET_QUEUE_ITEM_IMAGE_URL_PARAM_NAME, imageUrl);
+            queueItems.add(queueItem);
+
+            if (imageUrl != null && i >= startIndex && i < startIndex + QUEUE_ARTWORK_PRELOAD_LIMIT) {
+                preloadImageUrls.add(imageUrl);
             }
-        }).start();
+        }
+        queueArtworkPrefetcher.prefetchArtwork(preloadImageUrls);
 
-        if (mediaBrowser.isConnected()) {
-            mediaController.getTransportControls().prepareFromUri(uri, null);
+        Bundle setQueueParams = new Bundle();
+        setQueueParams.putParcelableArrayList(CUSTOM_ACTION_SET_QUEUE_ITEMS_PARAM_NAME, queueItems);
+        setQueueParams.putInt(CUSTOM_ACTION_SET_QUEUE_START_INDEX_PARAM_NAME, startIndex);
+        commandQueue.enqueue(CUSTOM_ACTION_SET_QUEUE_ACTION_NAME, setQueueParams, callbackContext);
+    }
+
+    /**
+     * Replaces the metadata of the current media source. The artwork is only loaded again if its url changed, and the
+     * service only publishes the fields if they differ from the ones it has.
+     */
+    private void setMetadata(JSONObject metadata, CallbackContext callbackContext) {
+        synchronized (this) {
+            album = metadata.isNull("album") ? null : metadata.optString("album");
+            artist = metadata.isNull("artist") ? null : metadata.optString("artist");
+            duration = metadata.isNull("duration") ? -1 :
+                    (long) (metadata.optDouble("duration") * MICROSECONDS_PER_SECOND);
+            title = metadata.isNull("title") ? null : metadata.optString("title");
+            loadArtwork(metadata.isNull("imageUrl") ? null : metadata.optString("imageUrl"), mediaSourceGeneration);
         }
-        callbackContext.success();
+
+        setSessionMetadata(callbackContext);
     }
 
-    private void setSessionMetadata() {
+    private void setSessionMetadata(@Nullable CallbackContext callbackContext) {
         Bundle setMetadataParams = new Bundle();
-        setMetadataParams.putString(CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME, title);
-        setMetadataParams.putParcelable(CUSTOM_ACTION_SET_SESSION_METADATA_ICON_PARAM_NAME, largeIcon);
-        mediaController.getTransportControls().sendCustomAction(CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME, setMetadataParams);
+        synchronized (this) {
+            setMetadataParams.putString(CUSTOM_ACTION_SET_SESSION_METADATA_ALBUM_PARAM_NAME, album);
+            setMetadataParams.putString(CUSTOM_ACTION_SET_SESSION_METADATA_ARTIST_PARAM_NAME, artist);
+            setMetadataParams.putString(CUSTOM_ACTION_SET_SESSION_METADATA_ARTWORK_KEY_PARAM_NAME, artworkKey);
+            setMetadataParams.putLong(CUSTOM_ACTION_SET_SESSION_METADATA_DURATION_PARAM_NAME, duration);
+            setMetadataParams.putString(CUSTOM_ACTION_SET_SESSION_METADATA_TITLE_PARAM_NAME, title);
+        }
+        commandQueue.enqueue(CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME, setMetadataParams, callbackContext);
+    }
+
+    /**
+     * Splits a display title of the form "artist - title". A title without the separator has no artist.
+     *
+     * @return the artist, or null, and the title
+     */
+    private static String[] splitTitle(String title) {
+        int separatorIndex = title.indexOf(TITLE_ARTIST_SEPARATOR);
+        if (separatorIndex < 0) {
+            return new String[]{null, title};
+        }
+
+        return new String[]{
+                title.substring(0, separatorIndex),
+                title.substring(separatorIndex + TITLE_ARTIST_SEPARATOR.length())
+        };
     }
 }
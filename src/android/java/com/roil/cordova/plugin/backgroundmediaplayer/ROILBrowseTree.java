@@ -0,0 +1,195 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.net.Uri;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Browsable catalogue pushed from JS, shared in-process by the plugin and the playback service so that large trees
+ * never cross a binder transaction whole. Nodes are indexed by media id and keep their MediaItem built, so a page of
+ * children is a sublist of prebuilt items.
+ */
+public class ROILBrowseTree {
+    static final String ROOT_ID = "root_id";
+
+    private static ROILBrowseTree instance;
+
+    private final HashMap<String, Node> nodes = new HashMap<>();
+
+    static class Node {
+        private final List<String> childIds = new ArrayList<>();
+        private final String id;
+        private final MediaBrowserCompat.MediaItem mediaItem;
+        private final String parentId;
+        private final String src;
+
+        private Node(String id, String parentId, String src, MediaBrowserCompat.MediaItem mediaItem) {
+            this.id = id;
+            this.mediaItem = mediaItem;
+            this.parentId = parentId;
+            this.src = src;
+        }
+
+        MediaDescriptionCompat getDescription() {
+            return mediaItem.getDescription();
+        }
+
+        String getSrc() {
+            return src;
+        }
+    }
+
+    private ROILBrowseTree() {
+        nodes.put(ROOT_ID, new Node(ROOT_ID, null, null, null));
+    }
+
+    static synchronized ROILBrowseTree getInstance() {
+        if (instance == null) {
+            instance = new ROILBrowseTree();
+        }
+
+        return instance;
+    }
+
+    /**
+     * @return the page of children, all of them when page is negative, or null if the parent isn't in the tree
+     */
+    synchronized List<MediaBrowserCompat.MediaItem> getChildren(String parentId, int page, int pageSize) {
+        Node parent = nodes.get(parentId);
+        if (parent == null) {
+            return null;
+        }
+
+        int start = 0;
+        int end = parent.childIds.size();
+        if (page >= 0 && pageSize > 0) {
+            start = (int) Math.min((long) page * pageSize, end);
+            end = Math.min(start + pageSize, end);
+        }
+
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            mediaItems.add(nodes.get(parent.childIds.get(i)).mediaItem);
+        }
+
+        return mediaItems;
+    }
+
+    synchronized int getChildCount(String parentId) {
+        Node parent = nodes.get(parentId);
+        return parent != null ? parent.childIds.size() : 0;
+    }
+
+    synchronized Node getNode(String id) {
+        return ROOT_ID.equals(id) ? null : nodes.get(id);
+    }
+
+    /**
+     * Replaces the children of the parent, and everything below them, with the nodes and their own children. The nodes
+     * are checked before anything changes, so invalid ones leave the tree as it was.
+     *
+     * @return false if the parent isn't in the tree
+     * @throws JSONException if a node has no id, shares its id with a sibling, or has the id of the root or of one of
+     * its ancestors, which would make a cycle
+     */
+    synchronized boolean setChildren(String parentId, JSONArray children) throws JSONException {
+        Node parent = nodes.get(parentId);
+        if (parent == null) {
+            return false;
+        }
+
+        Set<String> ancestorIds = new HashSet<>();
+        for (Node ancestor = parent; ancestor != null; ancestor = nodes.get(ancestor.parentId)) {
+            ancestorIds.add(ancestor.id);
+        }
+        checkChildren(children, ancestorIds);
+
+        removeDescendants(parent);
+        addChildren(parent, children);
+
+        return true;
+    }
+
+    private void addChildren(Node parent, JSONArray children) throws JSONException {
+        for (int i = 0; i < children.length(); i++) {
+            JSONObject child = children.getJSONObject(i);
+            String id = child.getString("id");
+            String src = child.isNull("src") ? null : child.getString("src");
+            JSONArray grandChildren = child.optJSONArray("children");
+
+            MediaDescriptionCompat.Builder descriptionBuilder = new MediaDescriptionCompat.Builder()
+                    .setMediaId(id)
+                    .setTitle(child.optString("title", ""));
+            if (!child.isNull("subtitle")) {
+                descriptionBuilder.setSubtitle(child.getString("subtitle"));
+            }
+            if (!child.isNull("imageUrl")) {
+                descriptionBuilder.setIconUri(Uri.parse(child.getString("imageUrl")));
+            }
+            if (src != null) {
+                descriptionBuilder.setMediaUri(Uri.parse(src));
+            }
+
+            int flags = (src != null ? MediaBrowserCompat.MediaItem.FLAG_PLAYABLE : 0) |
+                    (grandChildren != null ? MediaBrowserCompat.MediaItem.FLAG_BROWSABLE : 0);
+            Node node = new Node(id, parent.id, src,
+                    new MediaBrowserCompat.MediaItem(descriptionBuilder.build(), flags));
+            Node previousNode = nodes.put(id, node);
+            if (previousNode != null) {
+                // A media id is unique in the tree, the latest node with it wins
+                removeDescendants(previousNode);
+                Node previousParent = nodes.get(previousNode.parentId);
+                if (previousParent != null && previousParent != parent) {
+                    previousParent.childIds.remove(id);
+                }
+            }
+            parent.childIds.add(id);
+
+            if (grandChildren != null) {
+                addChildren(node, grandChildren);
+            }
+        }
+    }
+
+    private static void checkChildren(JSONArray children, Set<String> ancestorIds) throws JSONException {
+        Set<String> childIds = new HashSet<>();
+        for (int i = 0; i < children.length(); i++) {
+            JSONObject child = children.getJSONObject(i);
+            String id = child.getString("id");
+            if (ancestorIds.contains(id)) {
+                throw new JSONException("Browse tree node " + id + " can't be below itself");
+            }
+            if (!childIds.add(id)) {
+                throw new JSONException("Browse tree node " + id + " appears twice under the same parent");
+            }
+
+            JSONArray grandChildren = child.optJSONArray("children");
+            if (grandChildren != null) {
+                ancestorIds.add(id);
+                checkChildren(grandChildren, ancestorIds);
+                ancestorIds.remove(id);
+            }
+        }
+    }
+
+    private void removeDescendants(Node parent) {
+        for (String childId : parent.childIds) {
+            Node child = nodes.get(childId);
+            if (child != null && child.parentId.equals(parent.id)) {
+                removeDescendants(child);
+                nodes.remove(childId);
+            }
+        }
+        parent.childIds.clear();
+    }
+}
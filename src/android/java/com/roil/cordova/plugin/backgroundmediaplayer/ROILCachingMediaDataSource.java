@@ -0,0 +1,43 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+
+/**
+ * MediaDataSource that reads a remote stream through {@link ROILMediaCache}, so replays and seeks back are served
+ * from disk.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class ROILCachingMediaDataSource extends MediaDataSource {
+    private final ROILMediaCache cache;
+    private final ROILMediaCache.Entry entry;
+
+    private boolean closed = false;
+
+    ROILCachingMediaDataSource(ROILMediaCache cache, String url) throws IOException {
+        this.cache = cache;
+        this.entry = cache.open(url);
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        return entry.readAt(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return entry.getSize();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            cache.close(entry);
+        }
+    }
+}
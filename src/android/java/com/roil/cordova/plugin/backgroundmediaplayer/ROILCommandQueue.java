@@ -0,0 +1,222 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaBrowserCompat;
+
+import androidx.annotation.Nullable;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ordered queue of commands from the plugin to the playback service. Commands are buffered until the media browser is
+ * connected, a run of the same mergeable command collapses into one with the last fields given, and everything pending
+ * is sent to the service as a single batch custom action. Each command's callback completes once the service
+ * acknowledges the batch, or with an error once the connection to the service fails or is lost.
+ */
+public class ROILCommandQueue {
+    static final String BATCH_ACTION_NAME = "batch";
+    static final String BATCH_COMMANDS_PARAM_NAME = "commands";
+    static final String BATCH_RESULTS_PARAM_NAME = "results";
+    static final String COMMAND_ERROR_PARAM_NAME = "error";
+    static final String COMMAND_NAME_PARAM_NAME = "command";
+
+    private static final Set<String> MERGEABLE_COMMANDS = new HashSet<>(Arrays.asList(
+            ROILBackgroundMediaPlayer.COMMAND_PLAY,
+            ROILBackgroundMediaPlayer.COMMAND_SET_MEDIA_SOURCE,
+            ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_ACTION_NAME,
+            ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_SESSION_METADATA_ACTION_NAME
+    ));
+    private static final List<String> MERGED_FLOAT_PARAMS = Arrays.asList(
+            ROILBackgroundMediaPlayer.CUSTOM_ACTION_SET_PLAYBACK_SPEED_PARAM_NAME
+    );
+    private static final List<String> MERGED_INT_PARAMS = Arrays.asList(
+            ROILBackgroundMediaPlayer.COMMAND_PLAY_POSITION_PARAM_NAME
+    );
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<List<Command>> inFlightBatches = new ArrayList<>();
+    private final MediaBrowserCompat mediaBrowser;
+    private final List<Command> pendingCommands = new ArrayList<>();
+
+    private boolean flushScheduled = false;
+
+    private static class Command {
+        private final List<CallbackContext> callbackContexts = new ArrayList<>(1);
+        private final String name;
+        private Bundle params;
+
+        private Command(String name, Bundle params) {
+            this.name = name;
+            this.params = params;
+        }
+
+        private void complete(Bundle result) {
+            String error = result != null ? result.getString(COMMAND_ERROR_PARAM_NAME) : null;
+            for (CallbackContext callbackContext : callbackContexts) {
+                if (error != null) {
+                    callbackContext.error(error);
+                } else if (result == null || result.isEmpty()) {
+                    callbackContext.success();
+                } else {
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, toJSON(result)));
+                }
+            }
+        }
+    }
+
+    ROILCommandQueue(MediaBrowserCompat mediaBrowser) {
+        this.mediaBrowser = mediaBrowser;
+    }
+
+    synchronized void enqueue(String name, Bundle params, @Nullable CallbackContext callbackContext) {
+        Command lastCommand = pendingCommands.isEmpty() ? null : pendingCommands.get(pendingCommands.size() - 1);
+        Command command;
+        if (lastCommand != null && lastCommand.name.equals(name) && MERGEABLE_COMMANDS.contains(name)) {
+            command = lastCommand;
+            command.params = merge(lastCommand.params, params);
+        } else {
+            command = new Command(name, params);
+            pendingCommands.add(command);
+        }
+
+        if (callbackContext != null) {
+            command.callbackContexts.add(callbackContext);
+        }
+        scheduleFlush();
+    }
+
+    synchronized void onConnected() {
+        scheduleFlush();
+    }
+
+    /**
+     * Fails the pending commands and the batches the service hasn't replied to, since their replies are dropped along
+     * with the connection.
+     */
+    void onConnectionLost(String message) {
+        List<Command> commands = new ArrayList<>();
+        synchronized (this) {
+            commands.addAll(pendingCommands);
+            pendingCommands.clear();
+            for (List<Command> batch : inFlightBatches) {
+                commands.addAll(batch);
+            }
+            inFlightBatches.clear();
+        }
+
+        Bundle error = new Bundle();
+        error.putString(COMMAND_ERROR_PARAM_NAME, message);
+        for (Command command : commands) {
+            command.complete(error);
+        }
+    }
+
+    /**
+     * @return whether the batch was still in flight, it is completed once only
+     */
+    private synchronized boolean removeInFlightBatch(List<Command> batch) {
+        return inFlightBatches.remove(batch);
+    }
+
+    /**
+     * The last command replaces the previous one, except for the position and speed it leaves out, which it keeps from
+     * the previous one. So play(10) followed by play(null) still seeks to 10.
+     */
+    private static Bundle merge(Bundle previousParams, Bundle params) {
+        Bundle mergedParams = new Bundle(params);
+        for (String key : MERGED_FLOAT_PARAMS) {
+            if (!params.containsKey(key) && previousParams.containsKey(key)) {
+                mergedParams.putFloat(key, previousParams.getFloat(key));
+            }
+        }
+        for (String key : MERGED_INT_PARAMS) {
+            if (!params.containsKey(key) && previousParams.containsKey(key)) {
+                mergedParams.putInt(key, previousParams.getInt(key));
+            }
+        }
+
+        return mergedParams;
+    }
+
+    private static JSONObject toJSON(Bundle bundle) {
+        JSONObject json = new JSONObject();
+        for (String key : bundle.keySet()) {
+            try {
+                json.put(key, bundle.get(key));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return json;
+    }
+
+    private void flush() {
+        List<Command> commands;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingCommands.isEmpty() || !mediaBrowser.isConnected()) {
+                return;
+            }
+
+            commands = new ArrayList<>(pendingCommands);
+            pendingCommands.clear();
+            inFlightBatches.add(commands);
+        }
+
+        ArrayList<Bundle> commandBundles = new ArrayList<>(commands.size());
+        for (Command command : commands) {
+            Bundle commandBundle = new Bundle(command.params);
+            commandBundle.putString(COMMAND_NAME_PARAM_NAME, command.name);
+            commandBundles.add(commandBundle);
+        }
+
+        Bundle batchParams = new Bundle();
+        batchParams.putParcelableArrayList(BATCH_COMMANDS_PARAM_NAME, commandBundles);
+        mediaBrowser.sendCustomAction(BATCH_ACTION_NAME, batchParams, new MediaBrowserCompat.CustomActionCallback() {
+            @Override
+            public void onResult(String action, Bundle extras, Bundle resultData) {
+                if (!removeInFlightBatch(commands)) {
+                    return;
+                }
+
+                List<Bundle> results = resultData != null ?
+                        resultData.getParcelableArrayList(BATCH_RESULTS_PARAM_NAME) : null;
+                for (int i = 0; i < commands.size(); i++) {
+                    commands.get(i).complete(results != null && i < results.size() ? results.get(i) : null);
+                }
+            }
+
+            @Override
+            public void onError(String action, Bundle extras, Bundle data) {
+                if (!removeInFlightBatch(commands)) {
+                    return;
+                }
+
+                Bundle error = new Bundle();
+                error.putString(COMMAND_ERROR_PARAM_NAME, "The background player rejected the command");
+                for (Command command : commands) {
+                    command.complete(error);
+                }
+            }
+        });
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.post(this::flush);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.datasource.BaseDataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.SeekParameters;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
+import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.source.ProgressiveMediaSource;
+import androidx.media3.extractor.DefaultExtractorsFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Player backed by a Media3 ExoPlayer. HLS and DASH streams use adaptive track selection, progressive streams are read
+ * through the on-disk media cache, constant bitrate seeking is enabled so seeks in long MP3s don't scan the file, and
+ * seeks snap to the closest sync point. A chained next player hands its media over to the ExoPlayer of this one, which
+ * plays both as a playlist so the next item is buffered ahead and starts without a gap.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class ROILExoPlayerEngine implements ROILPlayer {
+    private final int bufferForPlaybackAfterRebufferMs;
+    private final int bufferForPlaybackMs;
+    private final Context context;
+    private final DefaultExtractorsFactory extractorsFactory;
+    private final Listener listener;
+    private final Looper looper;
+    private final int maxBufferMs;
+    private final int minBufferMs;
+
+    private boolean buffering = false;
+    private int bufferedPercentage = -1;
+    private long duration = -1;
+    private Playlist playlist;
+    private boolean prepared = false;
+    private boolean released = false;
+    private Uri uri;
+
+    static class Factory implements ROILPlayer.Factory {
+        private final Context context;
+        private final Looper looper;
+
+        private int bufferForPlaybackAfterRebufferMs;
+        private int bufferForPlaybackMs;
+        private int maxBufferMs;
+        private int minBufferMs;
+
+        Factory(Context context, Looper looper, int minBufferMs, int maxBufferMs, int bufferForPlaybackMs,
+                int bufferForPlaybackAfterRebufferMs) {
+            this.context = context;
+            this.looper = looper;
+            setBufferingPolicy(minBufferMs, maxBufferMs, bufferForPlaybackMs, bufferForPlaybackAfterRebufferMs);
+        }
+
+        @Override
+        public ROILPlayer create(Listener listener) {
+            return new ROILExoPlayerEngine(this, listener);
+        }
+
+        @Override
+        public void setBufferingPolicy(int minBufferMs, int maxBufferMs, int bufferForPlaybackMs,
+                                       int bufferForPlaybackAfterRebufferMs) {
+            if (minBufferMs >= 0) {
+                this.minBufferMs = minBufferMs;
+            }
+            if (maxBufferMs >= 0) {
+                this.maxBufferMs = maxBufferMs;
+            }
+            if (bufferForPlaybackMs >= 0) {
+                this.bufferForPlaybackMs = bufferForPlaybackMs;
+            }
+            if (bufferForPlaybackAfterRebufferMs >= 0) {
+                this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+            }
+        }
+    }
+
+    private ROILExoPlayerEngine(Factory factory, Listener listener) {
+        this.context = factory.context;
+        this.listener = listener;
+        this.looper = factory.looper;
+
+        extractorsFactory = new DefaultExtractorsFactory().setConstantBitrateSeekingEnabled(true);
+        // DefaultLoadControl rejects playback targets above the minimum buffer and a maximum below it
+        minBufferMs = Math.max(factory.minBufferMs,
+                Math.max(factory.bufferForPlaybackMs, factory.bufferForPlaybackAfterRebufferMs));
+        maxBufferMs = Math.max(minBufferMs, factory.maxBufferMs);
+        bufferForPlaybackMs = factory.bufferForPlaybackMs;
+        bufferForPlaybackAfterRebufferMs = factory.bufferForPlaybackAfterRebufferMs;
+    }
+
+    @Override
+    public long getCurrentPosition() {
+        return isCurrent() ? playlist.exoPlayer.getCurrentPosition() : 0;
+    }
+
+    @Override
+    public long getDuration() {
+        if (isCurrent()) {
+            updateDuration();
+        }
+
+        return duration;
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return playlist != null ? playlist.exoPlayer.getPlaybackParameters().speed : 1.0f;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        if (!isCurrent()) {
+            return false;
+        }
+
+        int playbackState = playlist.exoPlayer.getPlaybackState();
+        return playlist.exoPlayer.getPlayWhenReady() &&
+                playbackState != Player.STATE_IDLE &&
+                playbackState != Player.STATE_ENDED;
+    }
+
+    @Override
+    public void pause() {
+        if (isCurrent()) {
+            playlist.exoPlayer.pause();
+        }
+    }
+
+    @Override
+    public void prepareAsync(Uri uri) {
+        leavePlaylist();
+        this.uri = uri;
+        prepared = false;
+        playlist = new Playlist(this);
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        leavePlaylist();
+    }
+
+    @Override
+    public void seekTo(long position) {
+        if (joinOwnPlaylist()) {
+            playlist.exoPlayer.seekTo(position);
+        }
+    }
+
+    /**
+     * Moves the next player's media to the end of this player's ExoPlayer, or takes back the one chained before. An
+     * unchained player has no ExoPlayer anymore and gets a new one if it is started or seeked.
+     */
+    @Override
+    public void setNextPlayer(@Nullable ROILPlayer nextPlayer) {
+        if (playlist == null) {
+            return;
+        }
+
+        playlist.removeAfter(this);
+        if (nextPlayer != null) {
+            ROILExoPlayerEngine nextEngine = (ROILExoPlayerEngine) nextPlayer;
+            nextEngine.leavePlaylist();
+            nextEngine.playlist = playlist;
+            playlist.add(nextEngine);
+        }
+    }
+
+    @Override
+    public void setPlaybackSpeed(float playbackSpeed) {
+        if (isCurrent()) {
+            playlist.exoPlayer.setPlaybackSpeed(playbackSpeed);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (joinOwnPlaylist()) {
+            playlist.exoPlayer.play();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (isCurrent()) {
+            playlist.exoPlayer.stop();
+        }
+    }
+
+    private MediaSource createMediaSource() {
+        MediaItem mediaItem = MediaItem.fromUri(uri);
+        if (Util.inferContentType(uri) == C.CONTENT_TYPE_OTHER && ROILMediaCache.isCacheable(uri.toString())) {
+            ROILMediaCache cache = ROILMediaCache.getInstance(context);
+            return new ProgressiveMediaSource.Factory(() -> new CachingDataSource(cache), extractorsFactory)
+                    .createMediaSource(mediaItem);
+        }
+
+        return new DefaultMediaSourceFactory(context, extractorsFactory).createMediaSource(mediaItem);
+    }
+
+    private boolean isCurrent() {
+        return playlist != null && playlist.getCurrentEngine() == this;
+    }
+
+    /**
+     * Gives a player that was unchained after preparing an ExoPlayer of its own again.
+     *
+     * @return whether this player is the current one of its ExoPlayer
+     */
+    private boolean joinOwnPlaylist() {
+        if (playlist == null && uri != null && !released) {
+            playlist = new Playlist(this);
+        }
+
+        return isCurrent();
+    }
+
+    private void leavePlaylist() {
+        if (playlist != null) {
+            Playlist previousPlaylist = playlist;
+            playlist = null;
+            previousPlaylist.remove(this);
+        }
+    }
+
+    /**
+     * Maps ExoPlayer states to the MediaPlayer style callbacks: the first ready state completes the prepare, and only
+     * later buffering states are reported as buffering.
+     */
+    private void onStateChanged(int playbackState) {
+        switch (playbackState) {
+            case Player.STATE_BUFFERING:
+                if (prepared && !buffering) {
+                    buffering = true;
+                    listener.onBufferingChanged(this, true);
+                }
+                break;
+            case Player.STATE_READY:
+                updateDuration();
+                if (!prepared) {
+                    prepared = true;
+                    listener.onPrepared(this);
+                } else if (buffering) {
+                    buffering = false;
+                    listener.onBufferingChanged(this, false);
+                }
+                break;
+            case Player.STATE_ENDED:
+                listener.onCompletion(this);
+                break;
+        }
+        // The listener may have released this player
+        if (isCurrent()) {
+            updateBufferedPercentage();
+        }
+    }
+
+    private void updateBufferedPercentage() {
+        int percentage = playlist.exoPlayer.getBufferedPercentage();
+        if (percentage != bufferedPercentage) {
+            bufferedPercentage = percentage;
+            listener.onBufferingUpdate(this, percentage);
+        }
+    }
+
+    /**
+     * An ExoPlayer and the players whose media it plays, in playlist order. Callbacks go to the player of the current
+     * media item, and moving on to the next item completes the previous player.
+     */
+    private static class Playlist implements Player.Listener {
+        private final List<ROILExoPlayerEngine> engines = new ArrayList<>();
+        private final ExoPlayer exoPlayer;
+
+        private Playlist(ROILExoPlayerEngine engine) {
+            DefaultLoadControl loadControl = new DefaultLoadControl.Builder()
+                    .setBufferDurationsMs(
+                            engine.minBufferMs,
+                            engine.maxBufferMs,
+                            engine.bufferForPlaybackMs,
+                            engine.bufferForPlaybackAfterRebufferMs
+                    )
+                    .build();
+            exoPlayer = new ExoPlayer.Builder(engine.context,
+                    new DefaultMediaSourceFactory(engine.context, engine.extractorsFactory))
+                    .setLoadControl(loadControl)
+                    .setLooper(engine.looper)
+                    .setSeekParameters(SeekParameters.CLOSEST_SYNC)
+                    .build();
+            exoPlayer.addListener(this);
+            add(engine);
+            exoPlayer.prepare();
+        }
+
+        private void add(ROILExoPlayerEngine engine) {
+            engines.add(engine);
+            exoPlayer.addMediaSource(engine.createMediaSource());
+        }
+
+        @Nullable
+        private ROILExoPlayerEngine getCurrentEngine() {
+            int index = exoPlayer.getCurrentMediaItemIndex();
+            return index < engines.size() ? engines.get(index) : null;
+        }
+
+        /**
+         * Removes the media of a player. Removing the current one releases the ExoPlayer, since the players after it
+         * were only chained to it.
+         */
+        private void remove(ROILExoPlayerEngine engine) {
+            int index = engines.indexOf(engine);
+            if (index < 0) {
+                return;
+            }
+
+            if (engines.size() == 1 || index == exoPlayer.getCurrentMediaItemIndex()) {
+                for (ROILExoPlayerEngine otherEngine : engines) {
+                    otherEngine.playlist = null;
+                }
+                engines.clear();
+                exoPlayer.release();
+            } else {
+                engines.remove(index);
+                exoPlayer.removeMediaItem(index);
+            }
+        }
+
+        private void removeAfter(ROILExoPlayerEngine engine) {
+            int index = engines.indexOf(engine);
+            while (engines.size() > index + 1) {
+                int lastIndex = engines.size() - 1;
+                engines.remove(lastIndex).playlist = null;
+                exoPlayer.removeMediaItem(lastIndex);
+            }
+        }
+
+        @Override
+        public void onIsLoadingChanged(boolean isLoading) {
+            ROILExoPlayerEngine engine = getCurrentEngine();
+            if (engine != null) {
+                engine.updateBufferedPercentage();
+            }
+        }
+
+        @Override
+        public void onPlaybackStateChanged(int playbackState) {
+            ROILExoPlayerEngine engine = getCurrentEngine();
+            if (engine != null) {
+                engine.onStateChanged(playbackState);
+            }
+        }
+
+        @Override
+        public void onPlayerError(PlaybackException error) {
+            ROILExoPlayerEngine engine = getCurrentEngine();
+            if (engine != null) {
+                engine.listener.onError(engine, "ExoPlayer error " + error.getErrorCodeName());
+            }
+        }
+
+        @Override
+        public void onPositionDiscontinuity(Player.PositionInfo oldPosition, Player.PositionInfo newPosition,
+                                            int reason) {
+            if (reason == Player.DISCONTINUITY_REASON_SEEK) {
+                ROILExoPlayerEngine engine = getCurrentEngine();
+                if (engine != null) {
+                    engine.listener.onSeekComplete(engine);
+                }
+            } else if (reason == Player.DISCONTINUITY_REASON_AUTO_TRANSITION &&
+                    oldPosition.mediaItemIndex < engines.size()) {
+                ROILExoPlayerEngine engine = engines.get(oldPosition.mediaItemIndex);
+                engine.listener.onCompletion(engine);
+            }
+        }
+    }
+
+    /**
+     * Keeps the duration of the current media item, so it is still known once this player is unchained.
+     */
+    private void updateDuration() {
+        long currentDuration = playlist.exoPlayer.getDuration();
+        if (currentDuration != C.TIME_UNSET) {
+            duration = currentDuration;
+        }
+    }
+
+    /**
+     * Media3 data source that reads a remote stream through {@link ROILMediaCache}, like ROILCachingMediaDataSource
+     * does for MediaPlayer.
+     */
+    private static class CachingDataSource extends BaseDataSource {
+        private final ROILMediaCache cache;
+
+        private long bytesRemaining;
+        private ROILMediaCache.Entry entry;
+        private boolean opened = false;
+        private long position;
+        private Uri uri;
+
+        private CachingDataSource(ROILMediaCache cache) {
+            super(true);
+            this.cache = cache;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            transferInitializing(dataSpec);
+            uri = dataSpec.uri;
+            entry = cache.open(uri.toString());
+            position = dataSpec.position;
+            if (dataSpec.length != C.LENGTH_UNSET) {
+                bytesRemaining = dataSpec.length;
+            } else {
+                long size = entry.getSize();
+                bytesRemaining = size >= 0 ? Math.max(0, size - position) : C.LENGTH_UNSET;
+            }
+            transferStarted(dataSpec);
+            opened = true;
+
+            return bytesRemaining;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (bytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+
+            int size = bytesRemaining == C.LENGTH_UNSET ? length : (int) Math.min(length, bytesRemaining);
+            int read = entry.readAt(position, buffer, offset, size);
+            if (read == -1) {
+                return C.RESULT_END_OF_INPUT;
+            }
+
+            position += read;
+            if (bytesRemaining != C.LENGTH_UNSET) {
+                bytesRemaining -= read;
+            }
+            bytesTransferred(read);
+
+            return read;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return uri;
+        }
+
+        @Override
+        public void close() {
+            uri = null;
+            if (entry != null) {
+                cache.close(entry);
+                entry = null;
+            }
+            if (opened) {
+                opened = false;
+                transferEnded();
+            }
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Bounded on-disk cache of streamed media. For each url it keeps the contiguous prefix of the stream that has been
+ * read so far: byte ranges inside that prefix are served from disk, reads just past it extend it from the network,
+ * and reads further ahead go straight to the network without being cached. Streams without a known length, such as
+ * live radio, are never cached since their prefix would grow without bound. Least recently used entries are evicted
+ * once the cache grows past its size limit.
+ *
+ * Along with the length, each entry keeps a validator of the content it cached, the strong ETag or else the
+ * Last-Modified date. Extending the prefix from the network sends it as If-Range, and the prefix is dropped once the
+ * response shows the content changed, by its validator or failing that by its length.
+ */
+public class ROILMediaCache {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CACHE_DIRECTORY_NAME = "roil_media";
+    private static final long CACHE_MAX_BYTES = 200 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final String LENGTH_FILE_SUFFIX = ".len";
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final long SEQUENTIAL_READ_WINDOW = 512 * 1024;
+
+    private static ROILMediaCache instance;
+
+    private final File directory;
+    private final HashMap<String, Entry> openEntries = new HashMap<>();
+
+    private ROILMediaCache(Context context) {
+        this(new File(context.getCacheDir(), CACHE_DIRECTORY_NAME));
+    }
+
+    ROILMediaCache(File directory) {
+        this.directory = directory;
+    }
+
+    static synchronized ROILMediaCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ROILMediaCache(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Only remote progressive media is cached. HLS, DASH and SmoothStreaming manifests are recognized from the path
+     * like Media3's Util.inferContentType does, and are read by the players themselves.
+     */
+    static boolean isCacheable(String url) {
+        if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+            return false;
+        }
+
+        String path = url;
+        int queryIndex = path.indexOf('?');
+        if (queryIndex != -1) {
+            path = path.substring(0, queryIndex);
+        }
+        int fragmentIndex = path.indexOf('#');
+        if (fragmentIndex != -1) {
+            path = path.substring(0, fragmentIndex);
+        }
+        path = path.toLowerCase(Locale.US);
+
+        return !path.endsWith(".m3u8") &&
+                !path.endsWith(".mpd") &&
+                !path.endsWith(".ism") &&
+                !path.endsWith(".isml") &&
+                !path.endsWith(".ism/manifest") &&
+                !path.endsWith(".isml/manifest");
+    }
+
+    /**
+     * Opens the entry for the url, sharing it with any other reader of the same url. Every call must be balanced by a
+     * call to {@link #close(Entry)}.
+     */
+    synchronized Entry open(String url) throws IOException {
+        Entry entry = openEntries.get(url);
+        if (entry == null) {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+
+            String name = ROILArtworkCache.hash(url);
+            entry = new Entry(url, new File(directory, name), new File(directory, name + LENGTH_FILE_SUFFIX));
+            openEntries.put(url, entry);
+        }
+        entry.references++;
+
+        return entry;
+    }
+
+    /**
+     * The entry is closed outside the cache lock: closing it aborts its network reads but still waits for the one in
+     * progress, which must not hold up opening other entries.
+     */
+    void close(Entry entry) {
+        synchronized (this) {
+            if (--entry.references > 0) {
+                return;
+            }
+            openEntries.remove(entry.url);
+        }
+
+        entry.closeFiles();
+        trim();
+    }
+
+    /**
+     * @return the strong ETag of the response, or else its Last-Modified date, which are the validators If-Range takes
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static HttpURLConnection openConnection(String url, long position, String validator) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (position > 0) {
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+            if (validator != null) {
+                connection.setRequestProperty("If-Range", validator);
+            }
+        }
+
+        return connection;
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void skipFully(InputStream inputStream, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = inputStream.skip(bytes);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Opens a stream at the position. Servers that ignore the range header are skipped forward instead. The cached
+     * prefix is dropped first if the response shows the content changed, in which case a full response is not skipped
+     * forward when it is opened to extend the prefix, since the new prefix starts from the beginning.
+     *
+     * @return the stream, or null if the position is past the end of the content
+     */
+    private static InputStream openStream(Entry entry, long position, boolean append, long[] contentLength)
+            throws IOException {
+        HttpURLConnection connection = openConnection(entry.url, position, entry.validator);
+        if (!entry.addConnection(connection)) {
+            throw new IOException("Entry closed");
+        }
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode == 416) {
+                entry.removeConnection(connection);
+                return null;
+            }
+
+            InputStream inputStream = new FilterInputStream(connection.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        entry.removeConnection(connection);
+                    }
+                }
+            };
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange != null && contentRange.indexOf('/') != -1) {
+                    contentLength[0] = parseLength(contentRange.substring(contentRange.indexOf('/') + 1));
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                contentLength[0] = parseLength(connection.getHeaderField("Content-Length"));
+            } else {
+                throw new IOException("Unexpected response " + responseCode + " for " + entry.url);
+            }
+
+            boolean changed = entry.updateValidator(getValidator(connection), contentLength[0]);
+            if (changed && append) {
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    return inputStream;
+                }
+                // Without a validator to send, the server answered the range of the new content
+                inputStream.close();
+                return openStream(entry, 0, true, contentLength);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                skipFully(inputStream, position);
+            }
+
+            return inputStream;
+        } catch (IOException e) {
+            entry.removeConnection(connection);
+            throw e;
+        }
+    }
+
+    private synchronized void trim() {
+        File[] files = directory.listFiles((dir, name) -> !name.endsWith(LENGTH_FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        List<File> openFiles = new ArrayList<>(openEntries.size());
+        for (Entry entry : openEntries.values()) {
+            openFiles.add(entry.dataFile);
+        }
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length && totalBytes > CACHE_MAX_BYTES; i++) {
+            if (!openFiles.contains(files[i])) {
+                totalBytes -= files[i].length();
+                files[i].delete();
+                new File(directory, files[i].getName() + LENGTH_FILE_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Cached state of one url. All reads go through the entry lock, so one network stream at a time extends the
+     * cached prefix. The open connections are tracked apart from that lock so that closing the entry can abort a read
+     * in progress.
+     */
+    static class Entry {
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final List<HttpURLConnection> connections = new ArrayList<>();
+        private final File dataFile;
+        private final File metadataFile;
+        private final String url;
+
+        private InputStream appendStream;
+        private long cachedLength;
+        private long contentLength;
+        private RandomAccessFile data;
+        private InputStream directStream;
+        private long directStreamPosition = -1;
+        private boolean closed = false;
+        private int references = 0;
+        private boolean uncacheable = false;
+        private String validator;
+
+        private Entry(String url, File dataFile, File metadataFile) throws IOException {
+            this.dataFile = dataFile;
+            this.metadataFile = metadataFile;
+            this.url = url;
+
+            data = new RandomAccessFile(dataFile, "rw");
+            readMetadata();
+            if (contentLength < 0) {
+                // A prefix is only kept for content of a known length
+                data.setLength(0);
+            }
+            cachedLength = data.length();
+            dataFile.setLastModified(System.currentTimeMillis());
+        }
+
+        /**
+         * Makes sure at least the first bytes of the stream are cached, used to warm entries ahead of playback.
+         */
+        synchronized void cachePrefix(long bytes) throws IOException {
+            fill(bytes);
+        }
+
+        synchronized long getCachedLength() {
+            return cachedLength;
+        }
+
+        /**
+         * @return the length of the content, or -1 for a stream without a known length
+         */
+        synchronized long getSize() throws IOException {
+            if (contentLength < 0 && appendStream == null && !uncacheable) {
+                openAppendStream();
+            }
+
+            return contentLength;
+        }
+
+        synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (size == 0) {
+                return 0;
+            }
+            if (contentLength >= 0 && position >= contentLength) {
+                return -1;
+            }
+
+            if (position >= cachedLength && position - cachedLength <= SEQUENTIAL_READ_WINDOW && !uncacheable) {
+                fill(position + size);
+            }
+
+            if (position < cachedLength) {
+                data.seek(position);
+                return data.read(buffer, offset, (int) Math.min(size, cachedLength - position));
+            } else if (contentLength >= 0 && position >= contentLength) {
+                return -1;
+            }
+
+            return readDirect(position, buffer, offset, size);
+        }
+
+        private boolean addConnection(HttpURLConnection connection) {
+            synchronized (connections) {
+                if (closed) {
+                    connection.disconnect();
+                    return false;
+                }
+                connections.add(connection);
+                return true;
+            }
+        }
+
+        private void removeConnection(HttpURLConnection connection) {
+            synchronized (connections) {
+                connections.remove(connection);
+            }
+            connection.disconnect();
+        }
+
+        private void closeAppendStream() {
+            if (appendStream != null) {
+                try {
+                    appendStream.close();
+                } catch (IOException e) {
+                    //
+                }
+                appendStream = null;
+            }
+        }
+
+        private void closeDirectStream() {
+            if (directStream != null) {
+                try {
+                    directStream.close();
+                } catch (IOException e) {
+                    //
+                }
+                directStream = null;
+                directStreamPosition = -1;
+            }
+        }
+
+        /**
+         * Disconnects first, without the entry lock, so a read blocked on the network fails right away instead of
+         * running into its timeout. The data file of a stream that can't be cached is deleted.
+         */
+        private void closeFiles() {
+            synchronized (connections) {
+                closed = true;
+                for (HttpURLConnection connection : connections) {
+                    connection.disconnect();
+                }
+                connections.clear();
+            }
+
+            synchronized (this) {
+                closeAppendStream();
+                closeDirectStream();
+                try {
+                    data.close();
+                } catch (IOException e) {
+                    //
+                }
+                if (uncacheable) {
+                    dataFile.delete();
+                    metadataFile.delete();
+                }
+            }
+        }
+
+        /**
+         * Extends the cached prefix from the network until it reaches the end position or the end of the content.
+         */
+        private void fill(long end) throws IOException {
+            if (appendStream == null) {
+                openAppendStream();
+            }
+            if (uncacheable) {
+                return;
+            }
+
+            while (cachedLength < end && appendStream != null) {
+                int read;
+                try {
+                    read = appendStream.read(buffer);
+                } catch (IOException e) {
+                    closeAppendStream();
+                    throw e;
+                }
+
+                if (read == -1) {
+                    closeAppendStream();
+                    if (contentLength < 0) {
+                        contentLength = cachedLength;
+                        writeMetadata();
+                    }
+                    break;
+                }
+
+                data.seek(cachedLength);
+                data.write(buffer, 0, read);
+                cachedLength += read;
+            }
+        }
+
+        private void openAppendStream() throws IOException {
+            if (contentLength >= 0 && cachedLength >= contentLength) {
+                return;
+            }
+
+            long[] length = {contentLength};
+            appendStream = openStream(this, cachedLength, true, length);
+            if (appendStream == null) {
+                length[0] = cachedLength;
+            }
+            if (length[0] >= 0 && length[0] != contentLength) {
+                contentLength = length[0];
+                writeMetadata();
+            } else if (length[0] < 0) {
+                // No Content-Length: likely a live stream, which is read from the network only
+                closeAppendStream();
+                uncacheable = true;
+                cachedLength = 0;
+                data.setLength(0);
+            }
+        }
+
+        private int readDirect(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (directStream == null || directStreamPosition != position) {
+                closeDirectStream();
+                long[] length = {contentLength};
+                directStream = openStream(this, position, false, length);
+                if (directStream == null) {
+                    return -1;
+                }
+                directStreamPosition = position;
+            }
+
+            int read = directStream.read(buffer, offset, size);
+            if (read > 0) {
+                directStreamPosition += read;
+            } else {
+                closeDirectStream();
+            }
+
+            return read;
+        }
+
+        /**
+         * Reads the content length, and the validator on the line after it if the content had one.
+         */
+        private void readMetadata() {
+            contentLength = -1;
+            if (!metadataFile.exists()) {
+                return;
+            }
+
+            try (InputStream inputStream = new FileInputStream(metadataFile)) {
+                byte[] bytes = new byte[(int) metadataFile.length()];
+                int read = inputStream.read(bytes);
+                String[] lines = new String(bytes, 0, Math.max(0, read), StandardCharsets.UTF_8).split("\n", 2);
+                contentLength = parseLength(lines[0]);
+                validator = lines.length > 1 && !lines[1].isEmpty() ? lines[1] : null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Records the validator and length of a response, dropping the cached prefix if they show the content changed.
+         * Only a validator on both sides is compared, since a server that stops sending one hasn't changed the content.
+         *
+         * @return whether the content changed
+         */
+        private boolean updateValidator(String responseValidator, long responseLength) throws IOException {
+            boolean changed = cachedLength > 0 && (validator != null && responseValidator != null ?
+                    !validator.equals(responseValidator) :
+                    contentLength >= 0 && responseLength >= 0 && contentLength != responseLength);
+            if (changed) {
+                closeDirectStream();
+                cachedLength = 0;
+                data.setLength(0);
+                contentLength = responseLength;
+                validator = responseValidator;
+                writeMetadata();
+            } else if (responseValidator != null && !Objects.equals(validator, responseValidator)) {
+                validator = responseValidator;
+                writeMetadata();
+            }
+
+            return changed;
+        }
+
+        private void writeMetadata() {
+            try (OutputStream outputStream = new FileOutputStream(metadataFile)) {
+                String metadata = validator != null ? contentLength + "\n" + validator : Long.toString(contentLength);
+                outputStream.write(metadata.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
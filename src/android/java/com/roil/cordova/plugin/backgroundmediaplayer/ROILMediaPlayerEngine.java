@@ -0,0 +1,168 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Player backed by a pooled {@link MediaPlayer}. Remote progressive streams are read through the on-disk media cache
+ * where MediaDataSource is available, while HLS and DASH go to MediaPlayer as is since it can't read them from a
+ * MediaDataSource. The next player is chained with setNextMediaPlayer for gapless transitions.
+ */
+public class ROILMediaPlayerEngine implements ROILPlayer {
+    private final Context context;
+    private final MediaPlayer mediaPlayer;
+    private final ROILMediaPlayerPool pool;
+
+    static class Factory implements ROILPlayer.Factory {
+        private final Context context;
+        private final ROILMediaPlayerPool pool;
+
+        Factory(Context context, int poolSize) {
+            this.context = context;
+            this.pool = new ROILMediaPlayerPool(poolSize);
+        }
+
+        @Override
+        public ROILPlayer create(Listener listener) {
+            return new ROILMediaPlayerEngine(context, pool, listener);
+        }
+
+        @Override
+        public void clear() {
+            pool.clear();
+        }
+
+        /**
+         * @return how many MediaPlayer instances the pool had to create, the rest of the players reused one
+         */
+        int getCreatedCount() {
+            return pool.getCreatedCount();
+        }
+
+        @Override
+        public void setBufferingPolicy(int minBufferMs, int maxBufferMs, int bufferForPlaybackMs,
+                                       int bufferForPlaybackAfterRebufferMs) {
+            // MediaPlayer doesn't expose its buffer sizes
+        }
+    }
+
+    /**
+     * @return whether remote streams are read through {@link ROILMediaCache}, so that warming it saves a fetch
+     */
+    static boolean readsMediaCache() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    private ROILMediaPlayerEngine(Context context, ROILMediaPlayerPool pool, Listener listener) {
+        this.context = context;
+        this.pool = pool;
+
+        mediaPlayer = pool.acquire();
+        mediaPlayer.setOnBufferingUpdateListener((player, percent) -> listener.onBufferingUpdate(this, percent));
+        mediaPlayer.setOnCompletionListener(player -> listener.onCompletion(this));
+        mediaPlayer.setOnErrorListener((player, what, extra) -> {
+            listener.onError(this, "MediaPlayer error " + what);
+            return true;
+        });
+        mediaPlayer.setOnInfoListener((player, what, extra) -> {
+            if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START || what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+                listener.onBufferingChanged(this, what == MediaPlayer.MEDIA_INFO_BUFFERING_START);
+                return true;
+            }
+
+            return false;
+        });
+        mediaPlayer.setOnPreparedListener(player -> listener.onPrepared(this));
+        mediaPlayer.setOnSeekCompleteListener(player -> listener.onSeekComplete(this));
+    }
+
+    @Override
+    public long getCurrentPosition() {
+        return mediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public long getDuration() {
+        return mediaPlayer.getDuration();
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return mediaPlayer.getPlaybackParams().getSpeed();
+        }
+
+        return 1.0f;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mediaPlayer.isPlaying();
+    }
+
+    @Override
+    public void pause() {
+        mediaPlayer.pause();
+    }
+
+    @Override
+    public void prepareAsync(Uri uri) throws IOException {
+        if (readsMediaCache() && ROILMediaCache.isCacheable(uri.toString())) {
+            ROILCachingMediaDataSource dataSource =
+                    new ROILCachingMediaDataSource(ROILMediaCache.getInstance(context), uri.toString());
+            try {
+                mediaPlayer.setDataSource(dataSource);
+            } catch (RuntimeException e) {
+                dataSource.close();
+                throw e;
+            }
+        } else {
+            mediaPlayer.setDataSource(context, uri);
+        }
+        mediaPlayer.prepareAsync();
+    }
+
+    /**
+     * Hands the MediaPlayer back to the pool, which resets it and clears its listeners.
+     */
+    @Override
+    public void release() {
+        pool.recycle(mediaPlayer);
+    }
+
+    @Override
+    public void seekTo(long position) {
+        mediaPlayer.seekTo((int) position);
+    }
+
+    @Override
+    public void setNextPlayer(@Nullable ROILPlayer nextPlayer) {
+        mediaPlayer.setNextMediaPlayer(nextPlayer != null ? ((ROILMediaPlayerEngine) nextPlayer).mediaPlayer : null);
+    }
+
+    @Override
+    public void setPlaybackSpeed(float playbackSpeed) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            PlaybackParams playbackParams = new PlaybackParams();
+            playbackParams.setSpeed(playbackSpeed);
+            mediaPlayer.setPlaybackParams(playbackParams);
+        }
+    }
+
+    @Override
+    public void start() {
+        mediaPlayer.start();
+    }
+
+    @Override
+    public void stop() {
+        mediaPlayer.stop();
+    }
+}
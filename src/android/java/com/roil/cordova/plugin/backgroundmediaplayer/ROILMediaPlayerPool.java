@@ -0,0 +1,75 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps up to a configured number of idle MediaPlayer instances around so that source changes can reuse one with
+ * reset() instead of paying for native player setup and teardown each time.
+ */
+public class ROILMediaPlayerPool {
+    private final AudioAttributes audioAttributes = new AudioAttributes.Builder()
+            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .build();
+    private final ArrayDeque<MediaPlayer> idlePlayers = new ArrayDeque<>();
+    private final int maxIdlePlayers;
+
+    private int createdCount = 0;
+
+    ROILMediaPlayerPool(int maxIdlePlayers) {
+        this.maxIdlePlayers = maxIdlePlayers;
+    }
+
+    /**
+     * Returns an idle player, creating one only when the pool is empty.
+     */
+    MediaPlayer acquire() {
+        MediaPlayer player = idlePlayers.poll();
+        if (player == null) {
+            player = new MediaPlayer();
+            createdCount++;
+        }
+        player.setAudioAttributes(audioAttributes);
+
+        return player;
+    }
+
+    void clear() {
+        MediaPlayer player;
+        while ((player = idlePlayers.poll()) != null) {
+            player.release();
+        }
+    }
+
+    int getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * Resets the player back to the idle state and keeps it for reuse, or releases it if the pool is full or the player
+     * cannot be reset. Listeners are cleared so a recycled player can't call back into its previous owner.
+     */
+    void recycle(MediaPlayer player) {
+        try {
+            player.reset();
+        } catch (IllegalStateException e) {
+            player.release();
+            return;
+        }
+
+        player.setOnBufferingUpdateListener(null);
+        player.setOnCompletionListener(null);
+        player.setOnErrorListener(null);
+        player.setOnInfoListener(null);
+        player.setOnPreparedListener(null);
+        player.setOnSeekCompleteListener(null);
+        if (idlePlayers.size() < maxIdlePlayers) {
+            idlePlayers.push(player);
+        } else {
+            player.release();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Timing spans for the startup critical path, the service hot paths and playback stalls, shared by the plugin and the
+ * playback service. Samples are kept in preallocated ring buffers on the monotonic clock so recording one never
+ * allocates.
+ */
+public class ROILPlaybackMetrics {
+    static final int COUNTER_ARTWORK_BYTES_DECODED = 0;
+    static final int COUNTER_ARTWORK_HITS = 1;
+    static final int COUNTER_ARTWORK_MISSES = 2;
+    static final int COUNTER_NOTIFICATION_POSTS = 3;
+    static final int COUNTER_NOTIFICATION_SKIPS = 4;
+    static final int COUNTER_REBUFFERS = 5;
+    static final int COUNTER_RESOURCE_LOOKUPS = 6;
+    static final int SPAN_ARTWORK_DECODE = 0;
+    static final int SPAN_ARTWORK_FETCH = 1;
+    static final int SPAN_COMMAND = 2;
+    static final int SPAN_CONNECT = 3;
+    static final int SPAN_NOTIFICATION_BUILD = 4;
+    static final int SPAN_PREPARE = 5;
+    static final int SPAN_SESSION_UPDATE = 6;
+    static final int SPAN_STALL = 7;
+    static final int SPAN_TIME_TO_FIRST_AUDIO = 8;
+
+    private static final String[] COUNTER_NAMES = {
+            "artworkBytesDecoded",
+            "artworkHits",
+            "artworkMisses",
+            "notificationPosts",
+            "notificationSkips",
+            "rebuffers",
+            "resourceLookups"
+    };
+    private static final String LOG_TAG = "ROILPlaybackMetrics";
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+    private static final int SAMPLE_CAPACITY = 128;
+    private static final String[] SPAN_NAMES = {
+            "artworkDecode",
+            "artworkFetch",
+            "command",
+            "connect",
+            "notificationBuild",
+            "prepare",
+            "sessionUpdate",
+            "stall",
+            "timeToFirstAudio"
+    };
+
+    private static ROILPlaybackMetrics instance;
+
+    private final long[] counters = new long[COUNTER_NAMES.length];
+    private final int[] counts = new int[SPAN_NAMES.length];
+    private final boolean logging;
+    private final long[] pendingStarts = new long[SPAN_NAMES.length];
+    private final long[][] samples = new long[SPAN_NAMES.length][SAMPLE_CAPACITY];
+    private final long[] sortedSamples = new long[SAMPLE_CAPACITY];
+
+    private ROILPlaybackMetrics(boolean logging) {
+        this.logging = logging;
+    }
+
+    static synchronized ROILPlaybackMetrics getInstance(Context context) {
+        if (instance == null) {
+            int loggingId = context.getResources().getIdentifier(
+                    "log_playback_metrics",
+                    "string",
+                    context.getPackageName()
+            );
+            instance = new ROILPlaybackMetrics(loggingId != 0 && Boolean.parseBoolean(context.getString(loggingId)));
+        }
+
+        return instance;
+    }
+
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Starts a span that ends in another component, unless one is already pending.
+     */
+    synchronized void begin(int span) {
+        if (pendingStarts[span] == 0) {
+            pendingStarts[span] = now();
+        }
+    }
+
+    /**
+     * Drops the pending span, if any, when the work it times is abandoned.
+     */
+    synchronized void cancel(int span) {
+        pendingStarts[span] = 0;
+    }
+
+    synchronized void count(int counter) {
+        counters[counter]++;
+    }
+
+    synchronized void count(int counter, long amount) {
+        counters[counter] += amount;
+    }
+
+    /**
+     * Ends the pending span, if any.
+     */
+    synchronized void end(int span) {
+        if (pendingStarts[span] != 0) {
+            record(span, pendingStarts[span]);
+            pendingStarts[span] = 0;
+        }
+    }
+
+    synchronized void record(int span, long startNanos) {
+        long duration = now() - startNanos;
+        samples[span][counts[span] % SAMPLE_CAPACITY] = duration;
+        counts[span]++;
+
+        if (logging) {
+            Log.d(LOG_TAG, SPAN_NAMES[span] + " " + duration / NANOSECONDS_PER_MILLISECOND + "ms");
+        }
+    }
+
+    /**
+     * Starts a span, replacing any pending start so that superseded work isn't counted.
+     */
+    synchronized void restart(int span) {
+        pendingStarts[span] = now();
+    }
+
+    /**
+     * Returns the count and the p50, p90, p99 and max in milliseconds of the samples still in each span's buffer, and
+     * the value of each counter.
+     */
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject metrics = new JSONObject();
+        for (int span = 0; span < SPAN_NAMES.length; span++) {
+            int size = Math.min(counts[span], SAMPLE_CAPACITY);
+            JSONObject spanMetrics = new JSONObject();
+            spanMetrics.put("count", counts[span]);
+            if (size > 0) {
+                System.arraycopy(samples[span], 0, sortedSamples, 0, size);
+                Arrays.sort(sortedSamples, 0, size);
+                spanMetrics.put("p50", percentile(size, 0.5));
+                spanMetrics.put("p90", percentile(size, 0.9));
+                spanMetrics.put("p99", percentile(size, 0.99));
+                spanMetrics.put("max", sortedSamples[size - 1] / NANOSECONDS_PER_MILLISECOND);
+            }
+            metrics.put(SPAN_NAMES[span], spanMetrics);
+        }
+
+        JSONObject counterValues = new JSONObject();
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            counterValues.put(COUNTER_NAMES[counter], counters[counter]);
+        }
+        metrics.put("counters", counterValues);
+
+        return metrics;
+    }
+
+    private double percentile(int size, double percentile) {
+        int index = (int) Math.ceil(percentile * size) - 1;
+        return sortedSamples[Math.max(0, Math.min(size - 1, index))] / NANOSECONDS_PER_MILLISECOND;
+    }
+}
@@ -0,0 +1,80 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Playback engine driven by the playback service. Players are created, called and released on the playback thread,
+ * and call back their listener on that thread. A player is single use: once released it doesn't call back anymore.
+ */
+public interface ROILPlayer {
+    interface Factory {
+        ROILPlayer create(Listener listener);
+
+        /**
+         * Releases anything the factory keeps around for reuse, for the engines that keep anything.
+         */
+        default void clear() {
+        }
+
+        /**
+         * Sets the buffer targets in milliseconds of the players created from now on. A negative value keeps the
+         * current target. Engines that manage their own buffering ignore it.
+         */
+        void setBufferingPolicy(int minBufferMs, int maxBufferMs, int bufferForPlaybackMs,
+                                int bufferForPlaybackAfterRebufferMs);
+    }
+
+    interface Listener {
+        void onBufferingChanged(ROILPlayer player, boolean buffering);
+
+        void onBufferingUpdate(ROILPlayer player, int percent);
+
+        void onCompletion(ROILPlayer player);
+
+        void onError(ROILPlayer player, String message);
+
+        void onPrepared(ROILPlayer player);
+
+        void onSeekComplete(ROILPlayer player);
+    }
+
+    long getCurrentPosition();
+
+    /**
+     * @return the duration in milliseconds, or -1 if it isn't known
+     */
+    long getDuration();
+
+    float getPlaybackSpeed();
+
+    /**
+     * @return whether the player has been started and not paused or stopped since, even while it is buffering
+     */
+    boolean isPlaying();
+
+    void pause();
+
+    void prepareAsync(Uri uri) throws IOException;
+
+    void release();
+
+    void seekTo(long position);
+
+    /**
+     * Chains a prepared player of the same engine to be started as soon as this one completes.
+     */
+    void setNextPlayer(@Nullable ROILPlayer nextPlayer);
+
+    /**
+     * Only called while playing, since on some engines changing the speed starts playback.
+     */
+    void setPlaybackSpeed(float playbackSpeed);
+
+    void start();
+
+    void stop();
+}
@@ -0,0 +1,313 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Secondary players keyed by session id, such as a music bed under the main player or preview clips. They are owned
+ * by the playback thread and have no media session or notification of their own. The limit on players covers the main
+ * player and its pre-buffered next player too, counted as they are at the time, so the sessions share what they leave
+ * of it: a new one takes the player of the idle session with the lowest priority, or of a playing session with a lower
+ * priority than its own. The main player never waits for a player, it takes the one of an idle session if needed.
+ */
+public class ROILPlayerSessions {
+    private final Listener listener;
+    private final int maxPlayers;
+    private final ROILPlayer.Factory playerFactory;
+    private final HashMap<String, Session> sessions = new HashMap<>();
+
+    interface Listener {
+        /**
+         * @return how many players the main player and its pre-buffered next player hold now
+         */
+        int getPrimaryPlayerCount();
+
+        void onSessionCompletion(String id);
+    }
+
+    private class Session implements ROILPlayer.Listener {
+        private final String id;
+        private long lastUsed;
+        private int pendingSeekPosition = -1;
+        private ROILPlayer player;
+        private boolean playWhenPrepared = false;
+        private boolean prepared = false;
+        private int priority;
+
+        private Session(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void onBufferingChanged(ROILPlayer player, boolean buffering) {
+            //
+        }
+
+        @Override
+        public void onBufferingUpdate(ROILPlayer player, int percent) {
+            //
+        }
+
+        @Override
+        public void onCompletion(ROILPlayer player) {
+            if (player == this.player) {
+                listener.onSessionCompletion(id);
+            }
+        }
+
+        @Override
+        public void onError(ROILPlayer player, String message) {
+            if (player == this.player) {
+                release();
+            }
+        }
+
+        @Override
+        public void onPrepared(ROILPlayer player) {
+            if (player != this.player) {
+                return;
+            }
+
+            prepared = true;
+            if (pendingSeekPosition >= 0) {
+                player.seekTo(pendingSeekPosition);
+                pendingSeekPosition = -1;
+            }
+            if (playWhenPrepared) {
+                player.start();
+            }
+        }
+
+        @Override
+        public void onSeekComplete(ROILPlayer player) {
+            //
+        }
+
+        private boolean isPlaying() {
+            return player != null && (prepared ? player.isPlaying() : playWhenPrepared);
+        }
+
+        private void release() {
+            if (player != null) {
+                player.release();
+                player = null;
+            }
+            pendingSeekPosition = -1;
+            playWhenPrepared = false;
+            prepared = false;
+        }
+    }
+
+    /**
+     * @param maxPlayers the limit on players across the main player and the sessions
+     */
+    ROILPlayerSessions(ROILPlayer.Factory playerFactory, int maxPlayers, Listener listener) {
+        this.listener = listener;
+        this.maxPlayers = maxPlayers;
+        this.playerFactory = playerFactory;
+    }
+
+    /**
+     * Prepares the uri in the session, creating the session if needed.
+     *
+     * @return false if every player is held by a session that can't give it up
+     */
+    boolean setSource(String id, Uri uri, int priority) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            session = new Session(id);
+            sessions.put(id, session);
+        }
+        session.priority = priority;
+        session.lastUsed = SystemClock.elapsedRealtime();
+        session.release();
+
+        if (!reservePlayer(session)) {
+            sessions.remove(id);
+            return false;
+        }
+
+        session.player = playerFactory.create(session);
+        try {
+            session.player.prepareAsync(uri);
+        } catch (IOException e) {
+            e.printStackTrace();
+            session.release();
+            sessions.remove(id);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param position the position to seek to in milliseconds, or -1 to play from the current one
+     * @return false if the session has no player, because it was never set or its player was taken back
+     */
+    boolean play(String id, int position) {
+        Session session = sessions.get(id);
+        if (session == null || session.player == null) {
+            return false;
+        }
+
+        session.lastUsed = SystemClock.elapsedRealtime();
+        if (!session.prepared) {
+            if (position >= 0) {
+                session.pendingSeekPosition = position;
+            }
+            session.playWhenPrepared = true;
+            return true;
+        }
+
+        if (position >= 0) {
+            session.player.seekTo(position);
+        }
+        if (!session.player.isPlaying()) {
+            session.player.start();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the position in milliseconds the session paused at, or -1 if it has no player
+     */
+    long pause(String id) {
+        Session session = sessions.get(id);
+        if (session == null || session.player == null) {
+            return -1;
+        }
+
+        session.lastUsed = SystemClock.elapsedRealtime();
+        session.playWhenPrepared = false;
+        if (!session.prepared) {
+            return Math.max(0, session.pendingSeekPosition);
+        }
+        if (session.player.isPlaying()) {
+            session.player.pause();
+        }
+
+        return session.player.getCurrentPosition();
+    }
+
+    /**
+     * Pauses every session, used when the main player stops and the service leaves the foreground.
+     */
+    void pauseAll() {
+        for (Session session : sessions.values()) {
+            session.playWhenPrepared = false;
+            if (session.prepared && session.player.isPlaying()) {
+                session.player.pause();
+            }
+        }
+    }
+
+    void release(String id) {
+        Session session = sessions.remove(id);
+        if (session != null) {
+            session.release();
+        }
+    }
+
+    void releaseAll() {
+        for (Session session : sessions.values()) {
+            session.release();
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Makes room for a new player of the main player, to be called before creating it. Idle sessions give up their
+     * players until it fits the limit, and it goes past the limit only while every session holding one is playing.
+     */
+    void reservePrimaryPlayer() {
+        while (getSessionPlayerCount() + listener.getPrimaryPlayerCount() >= maxPlayers) {
+            Session victim = null;
+            for (Session session : sessions.values()) {
+                if (session.player != null && !session.isPlaying() &&
+                        (victim == null || isBetterVictim(session, false, victim))) {
+                    victim = session;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+
+            victim.release();
+        }
+    }
+
+    /**
+     * Releases every session that isn't playing, used to give memory back under pressure.
+     */
+    void releaseIdle() {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (!session.isPlaying()) {
+                session.release();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Makes room for the session's player, taking the player of an idle session before a playing one, then of the
+     * lowest priority, then of the least recently used.
+     */
+    private boolean reservePlayer(Session session) {
+        int playerCount = 0;
+        Session victim = null;
+        for (Session other : sessions.values()) {
+            if (other.player == null) {
+                continue;
+            }
+
+            playerCount++;
+            boolean playing = other.isPlaying();
+            if (playing && other.priority >= session.priority) {
+                continue;
+            }
+            if (victim == null || isBetterVictim(other, playing, victim)) {
+                victim = other;
+            }
+        }
+
+        if (playerCount + listener.getPrimaryPlayerCount() < maxPlayers) {
+            return true;
+        }
+        if (victim == null) {
+            return false;
+        }
+
+        victim.release();
+        return true;
+    }
+
+    private int getSessionPlayerCount() {
+        int playerCount = 0;
+        for (Session session : sessions.values()) {
+            if (session.player != null) {
+                playerCount++;
+            }
+        }
+
+        return playerCount;
+    }
+
+    private static boolean isBetterVictim(Session session, boolean playing, Session victim) {
+        boolean victimPlaying = victim.isPlaying();
+        if (playing != victimPlaying) {
+            return !playing;
+        }
+        if (session.priority != victim.priority) {
+            return session.priority < victim.priority;
+        }
+
+        return session.lastUsed < victim.lastUsed;
+    }
+}
@@ -0,0 +1,135 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the start of upcoming streams into {@link ROILMediaCache} and their artwork into {@link ROILArtworkCache},
+ * within a byte budget and a concurrency limit. Each prefetch request cancels the one before it. Streams are only
+ * warmed when the player engine reads them through the cache.
+ */
+public class ROILPrefetcher {
+    static final int DEFAULT_CONCURRENCY = 2;
+    static final long DEFAULT_MAX_BYTES_PER_SOURCE = 512 * 1024;
+    static final long DEFAULT_MAX_TOTAL_BYTES = 4 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    private static final int MAX_CONCURRENCY = 4;
+
+    private final Context context;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_CONCURRENCY,
+            MAX_CONCURRENCY,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>()
+    );
+    private final List<Future<?>> tasks = new ArrayList<>();
+    private final boolean warmStreams;
+
+    ROILPrefetcher(Context context, boolean warmStreams) {
+        this.context = context;
+        this.warmStreams = warmStreams;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void cancel() {
+        for (Future<?> task : tasks) {
+            task.cancel(true);
+        }
+        tasks.clear();
+    }
+
+    synchronized void prefetch(List<String> urls, List<String> imageUrls, long maxBytesPerSource, long maxTotalBytes,
+                               int concurrency) {
+        cancel();
+
+        int poolSize = Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+        if (poolSize < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(poolSize);
+            executor.setMaximumPoolSize(poolSize);
+        } else {
+            executor.setMaximumPoolSize(poolSize);
+            executor.setCorePoolSize(poolSize);
+        }
+
+        AtomicLong remainingBytes = new AtomicLong(maxTotalBytes);
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            String imageUrl = imageUrls.get(i);
+            tasks.add(executor.submit(() -> {
+                if (imageUrl != null) {
+                    warmArtwork(imageUrl);
+                }
+                if (warmStreams && url != null && ROILMediaCache.isCacheable(url)) {
+                    warmStream(url, maxBytesPerSource, remainingBytes);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Warms only the artwork of the urls, in order. Like a prefetch, it cancels the request before it.
+     */
+    synchronized void prefetchArtwork(List<String> imageUrls) {
+        cancel();
+
+        for (String imageUrl : imageUrls) {
+            tasks.add(executor.submit(() -> warmArtwork(imageUrl)));
+        }
+    }
+
+    void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void warmArtwork(String imageUrl) {
+        try {
+            ROILArtworkCache.getInstance(context).get(imageUrl);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Caches the first bytes of the stream in chunks, checking for cancellation and drawing on the shared budget
+     * between chunks.
+     */
+    private void warmStream(String url, long maxBytes, AtomicLong remainingBytes) {
+        ROILMediaCache cache = ROILMediaCache.getInstance(context);
+        ROILMediaCache.Entry entry = null;
+        try {
+            entry = cache.open(url);
+            long cachedLength = entry.getCachedLength();
+            while (cachedLength < maxBytes && !Thread.currentThread().isInterrupted()) {
+                long chunk = Math.min(CHUNK_SIZE, maxBytes - cachedLength);
+                if (remainingBytes.addAndGet(-chunk) < 0) {
+                    break;
+                }
+
+                entry.cachePrefix(cachedLength + chunk);
+                long newCachedLength = entry.getCachedLength();
+                if (newCachedLength <= cachedLength) {
+                    break;
+                }
+                cachedLength = newCachedLength;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (entry != null) {
+                cache.close(entry);
+            }
+        }
+    }
+}
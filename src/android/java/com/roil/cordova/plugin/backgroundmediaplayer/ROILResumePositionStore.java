@@ -0,0 +1,180 @@
+package com.roil.cordova.plugin.backgroundmediaplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resume position per media uri, kept in memory and written to a compact binary file in the background. Updates only
+ * mark the map dirty, a flush writes the latest snapshot of the whole map and flushes requested while a write is
+ * pending are folded into it. The map stays dirty until a write of all its changes succeeds. The least recently used
+ * entries are dropped past a fixed number of entries, and the file keeps them from least to most recently used.
+ */
+public class ROILResumePositionStore {
+    private static final int FILE_MAGIC = 0x524f4952;
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_ENTRIES = 5000;
+    private static final int MAX_URI_LENGTH = 2048;
+
+    private final File file;
+    private final LinkedHashMap<String, Long> positions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private long changeCount = 0;
+    private boolean dirty = false;
+    private boolean flushScheduled = false;
+
+    ROILResumePositionStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the file into memory in its order, keeping any position recorded before the load completes as the most
+     * recently used.
+     */
+    void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        LinkedHashMap<String, Long> loadedPositions = new LinkedHashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String uri = input.readUTF();
+                loadedPositions.put(uri, input.readLong());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this) {
+            List<Map.Entry<String, Long>> recordedPositions = snapshot();
+            positions.clear();
+            positions.putAll(loadedPositions);
+            for (Map.Entry<String, Long> entry : recordedPositions) {
+                positions.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the stored position in milliseconds, or -1 if there is none
+     */
+    synchronized long get(String uri) {
+        Long position = positions.get(uri);
+        return position != null ? position : -1;
+    }
+
+    synchronized void put(String uri, long position) {
+        if (uri.length() > MAX_URI_LENGTH) {
+            return;
+        }
+
+        Long previousPosition = positions.put(uri, position);
+        if (previousPosition == null || previousPosition != position) {
+            changeCount++;
+            dirty = true;
+        }
+    }
+
+    synchronized void remove(String uri) {
+        if (positions.remove(uri) != null) {
+            changeCount++;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Schedules a write of the current positions if they changed since the last one.
+     */
+    void flush() {
+        synchronized (this) {
+            if (!dirty || flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        writer.execute(this::write);
+    }
+
+    /**
+     * Flushes and stops the writer once the pending write is done.
+     */
+    void close() {
+        flush();
+        writer.shutdown();
+    }
+
+    private List<Map.Entry<String, Long>> snapshot() {
+        List<Map.Entry<String, Long>> snapshot = new ArrayList<>(positions.size());
+        for (Map.Entry<String, Long> entry : positions.entrySet()) {
+            snapshot.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * The map stays dirty while the write is in progress, and after it if the write fails or the map changed meanwhile,
+     * so a later flush writes it again.
+     */
+    private void write() {
+        List<Map.Entry<String, Long>> snapshot;
+        long snapshotChangeCount;
+        synchronized (this) {
+            snapshot = snapshot();
+            snapshotChangeCount = changeCount;
+            flushScheduled = false;
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output =
+                     new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> entry : snapshot) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporaryFile.delete();
+            return;
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (changeCount == snapshotChangeCount) {
+                dirty = false;
+            }
+        }
+    }
+}
@@ -7,7 +7,7 @@ import WebKit
     var avSession = AVAudioSession.sharedInstance()
     var callbackId: String = ""
     var imageUrl: String = ""
-    var position: Double = 0.0
+    var position: Double?
     var playbackSpeed: Float = 1.0
     var player: AVPlayer?
     var playerContext = 0
@@ -39,7 +39,8 @@ import WebKit
 
     @objc(play:)
     func play(command: CDVInvokedUrlCommand) -> Void {
-        position = command.argument(at: 0, withDefault: 0.0) as! Double
+        // argument(at:withDefault:) turns a null position into the default, but null plays from where the player is
+        position = command.argument(at: 0) as? Double
         playbackSpeed = command.argument(at: 1, withDefault: 1.0) as! Float
 
         callbackId = command.callbackId
@@ -96,6 +97,12 @@ import WebKit
     func startPlay() {
         shouldStartPlay = false
 
+        guard let position = position else {
+            clearNowPlaying()
+            configureAudioSessionAndStartPlay()
+            return
+        }
+
         player?.seek(to: CMTime(seconds: position, preferredTimescale: 1), completionHandler: {_ in
             self.clearNowPlaying()
             self.configureAudioSessionAndStartPlay()
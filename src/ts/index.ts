@@ -7,12 +7,148 @@ enum PlayerState {
   PLAYING = 'playing'
 }
 
+interface BrowseNode {
+  children?: BrowseNode[];
+  id: string;
+  imageUrl?: string;
+  src?: string;
+  subtitle?: string;
+  title: string;
+}
+
+interface BufferingPolicy {
+  bufferForPlaybackAfterRebufferMs?: number;
+  bufferForPlaybackMs?: number;
+  maxBufferMs?: number;
+  minBufferMs?: number;
+}
+
+interface SpanMetrics {
+  count: number;
+  max?: number;
+  p50?: number;
+  p90?: number;
+  p99?: number;
+}
+
+interface PlayerMetrics {
+  artworkDecode: SpanMetrics;
+  artworkFetch: SpanMetrics;
+  command: SpanMetrics;
+  connect: SpanMetrics;
+  counters: {
+    artworkBytesDecoded: number;
+    artworkHits: number;
+    artworkMisses: number;
+    notificationPosts: number;
+    notificationSkips: number;
+    rebuffers: number;
+    resourceLookups: number;
+  };
+  notificationBuild: SpanMetrics;
+  prepare: SpanMetrics;
+  sessionUpdate: SpanMetrics;
+  stall: SpanMetrics;
+  timeToFirstAudio: SpanMetrics;
+}
+
+interface Metadata {
+  album?: string;
+  artist?: string;
+  duration?: number;
+  imageUrl?: string;
+  title?: string;
+}
+
+interface PlayerEvent {
+  message?: string;
+  percent?: number;
+  position?: number;
+  sessionId?: string;
+  state?: PlayerState;
+  type: 'buffering' | 'completion' | 'error' | 'position' | 'state';
+}
+
 interface PlayerPositionAndState {
   position: number;
   state: PlayerState;
 }
 
+interface PrefetchOptions {
+  concurrency?: number;
+  maxBytesPerSource?: number;
+  maxTotalBytes?: number;
+}
+
+interface PrefetchSource {
+  src: string;
+  imageUrl?: string;
+}
+
+interface QueueItem {
+  src: string;
+  title?: string;
+  imageUrl?: string;
+}
+
+interface SubscribeOptions {
+  interval?: number;
+}
+
 class ROILBackgroundMediaPlayer {
+  /**
+   * Cancel the prefetch started by the last call to prefetch, Android only
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the prefetch is cancelled
+   */
+  cancelPrefetch() {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'cancelPrefetch',
+        []
+      );
+    });
+  }
+
+  /**
+   * Get the timings of the background player startup stages and hot paths, Android only
+   *
+   * @returns {Promise<PlayerMetrics>} Returns a promise that resolves with the sample count and the p50, p90, p99 and
+   * max durations in milliseconds of each stage, and the value of each counter
+   */
+  getMetrics() {
+    return new Promise<PlayerMetrics>((resolve, reject) => {
+      cordova.exec(
+        (metrics) => resolve(metrics),
+        () => reject(),
+        SERVICE_NAME,
+        'getMetrics',
+        []
+      );
+    });
+  }
+
+  /**
+   * Get the current position and state of the background media player without changing it, Android only
+   *
+   * @returns {Promise<PlayerPositionAndState>} Returns a promise that resolves with the current time and state of the
+   * background player
+   */
+  getPosition() {
+    return new Promise<PlayerPositionAndState>((resolve, reject) => {
+      cordova.exec(
+        (positionAndState) => resolve(positionAndState),
+        () => reject(),
+        SERVICE_NAME,
+        'getPosition',
+        []
+      );
+    });
+  }
+
   /**
    * Pause the background media player
    *
@@ -31,16 +167,36 @@ class ROILBackgroundMediaPlayer {
     });
   }
 
+  /**
+   * Pause a secondary session, Android only
+   *
+   * @param {string} sessionId Id of the session
+   *
+   * @returns {Promise<number>} Returns a promise that resolves with the current time of the session after it pauses
+   */
+  pauseSession(sessionId: string) {
+    return new Promise<number>((resolve, reject) => {
+      cordova.exec(
+        (result) => resolve(result.position),
+        () => reject(),
+        SERVICE_NAME,
+        'pauseSession',
+        [sessionId]
+      );
+    });
+  }
+
   /**
    * Play the background media player
    *
-   * @param {number} currentTime Current time for the foreground player to use to synchronize with the background player
+   * @param {number|null} currentTime Current time for the foreground player to use to synchronize with the background
+   * player, or null to play from the background player's position, such as the one restored by setMediaSource
    * @param {number} [playbackSpeed=1.0] Playback speed for the foreground player to use to synchronize with the
    * background player
    *
    * @returns {Promise<void>} Returns a promise that resolves when the background player starts
    */
-  play(currentTime: number, playbackSpeed = 1.0) {
+  play(currentTime: number | null, playbackSpeed = 1.0) {
     return new Promise<void>((resolve, reject) => {
       cordova.exec(
         () => resolve(),
@@ -52,6 +208,109 @@ class ROILBackgroundMediaPlayer {
     });
   }
 
+  /**
+   * Play a secondary session alongside the background media player, Android only
+   *
+   * @param {string} sessionId Id of the session
+   * @param {number|null} [currentTime=null] Time to start from, or null to play from the session's position
+   *
+   * @returns {Promise<void>} Returns a promise that resolves when the session is told to play
+   */
+  playSession(sessionId: string, currentTime: number | null = null) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'playSession',
+        [sessionId, currentTime]
+      );
+    });
+  }
+
+  /**
+   * Warm the start of media that is likely to be played next, and its image, in the background, Android only. Each
+   * call cancels the previous prefetch
+   *
+   * @param {PrefetchSource[]} sources Sources to warm with their optional imageUrl, most likely first
+   * @param {PrefetchOptions} [options={}] Optional bytes to cache per source (default 512 KB), bytes budget for the
+   * whole prefetch (default 4 MB) and number of sources warmed concurrently (default 2)
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the prefetch is started
+   */
+  prefetch(sources: PrefetchSource[], options: PrefetchOptions = {}) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'prefetch',
+        [sources, options]
+      );
+    });
+  }
+
+  /**
+   * Stop a secondary session and release its player, Android only
+   *
+   * @param {string} sessionId Id of the session
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the session is released
+   */
+  releaseSession(sessionId: string) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'releaseSession',
+        [sessionId]
+      );
+    });
+  }
+
+  /**
+   * Set the catalogue that media browsers such as Android Auto can browse and play from, Android only. Nodes with a src
+   * are playable, nodes with children are browsable. Ids must differ among siblings and from their ancestors' ids
+   *
+   * @param {BrowseNode[]} nodes Nodes to show under the parent, with their own children
+   * @param {string} [parentId=null] Id of an already set node whose children are replaced, or null for the root
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after browsers are notified of the change
+   */
+  setBrowseTree(nodes: BrowseNode[], parentId: string | null = null) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'setBrowseTree',
+        [nodes, parentId]
+      );
+    });
+  }
+
+  /**
+   * Set how much media the background player buffers before starting and while playing, Android only. Only the Media3
+   * engine applies it, from the next media source on
+   *
+   * @param {BufferingPolicy} policy Milliseconds of media to keep buffered at least and at most, and to buffer before
+   * starting and before resuming after a stall. Missing values keep their current setting
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the policy is passed to the background player
+   */
+  setBufferingPolicy(policy: BufferingPolicy) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'setBufferingPolicy',
+        [policy]
+      );
+    });
+  }
+
   /**
    * Pass information about the media to the background player, needs to be called before calling play or pause to init
    * the player
@@ -59,17 +318,157 @@ class ROILBackgroundMediaPlayer {
    * @param {string} src Source for the media to be played
    * @param {string} [title=null] Optional title to be displayed on the lockscreen
    * @param {string} [imageUrl=null] Optional imageUrl for an image to be displayed on the lockscreen
+   * @param {boolean} [resume=false] Whether to start from the position saved when this source was last paused or left,
+   * Android only
    *
-   * @returns {Promise<void>} Returns a promise that resolves after background player is initialized
+   * @returns {Promise<number>} Returns a promise that resolves after background player is initialized, with the
+   * position in seconds it resumes from
    */
-  setMediaSource(src: string, title = null, imageUrl = null) {
+  setMediaSource(src: string, title = null, imageUrl = null, resume = false) {
+    return new Promise<number>((resolve, reject) => {
+      cordova.exec(
+        (result) => resolve(result ? result.resumePosition : 0),
+        () => reject(),
+        SERVICE_NAME,
+        'setMediaSource',
+        [src, title, imageUrl, resume]
+      );
+    });
+  }
+
+  /**
+   * Replace the metadata of the current media shown on the lockscreen and to media controllers, Android only. The
+   * artwork is only loaded again if imageUrl changed, and nothing is republished if no field changed
+   *
+   * @param {Metadata} metadata Artist, title, album, duration in seconds and imageUrl of the media. Missing fields are
+   * cleared
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the metadata is passed to the background player
+   */
+  setMetadata(metadata: Metadata) {
     return new Promise<void>((resolve, reject) => {
       cordova.exec(
         () => resolve(),
         () => reject(),
         SERVICE_NAME,
-        'setMediaSource',
-        [src, title, imageUrl]
+        'setMetadata',
+        [metadata]
+      );
+    });
+  }
+
+  /**
+   * Pass a list of media to the background player, Android only. The next item is buffered ahead so that it starts
+   * without a gap when the current one ends
+   *
+   * @param {QueueItem[]} items Sources with their optional title and imageUrl, in play order
+   * @param {number} [startIndex=0] Index of the item to prepare first
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the queue is passed to the background player
+   */
+  setQueue(items: QueueItem[], startIndex = 0) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'setQueue',
+        [items, startIndex]
+      );
+    });
+  }
+
+  /**
+   * Prepare media in a secondary session that plays alongside the background media player, such as a music bed or a
+   * preview clip, Android only. Secondary sessions have no lockscreen controls of their own and share the players left
+   * by the background media player out of ANDROID_MAX_PLAYERS, it uses two at most: when none is free, an idle
+   * session or a playing one with a lower priority gives up its player. Idle sessions are also released when the device
+   * runs low on memory, every session is paused when the background media player stops, and a completion event with
+   * the session id is sent when one ends
+   *
+   * @param {string} sessionId Id of the session, created if needed
+   * @param {string} src Source for the media to be played
+   * @param {number} [priority=0] Sessions with a higher priority keep their player over lower ones
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the session starts preparing the media
+   */
+  setSessionSource(sessionId: string, src: string, priority = 0) {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'setSessionSource',
+        [sessionId, src, priority]
+      );
+    });
+  }
+
+  /**
+   * Move the background player to the next item of the queue, Android only
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the skip is requested
+   */
+  skipToNext() {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'skipToNext',
+        []
+      );
+    });
+  }
+
+  /**
+   * Move the background player to the previous item of the queue, Android only
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the skip is requested
+   */
+  skipToPrevious() {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'skipToPrevious',
+        []
+      );
+    });
+  }
+
+  /**
+   * Listen to the events of the background player instead of polling it, Android only. Position events are sent
+   * while playing and are paused along with the app, state, buffering, completion and error events are sent as they
+   * happen. Each call replaces the previous listener
+   *
+   * @param {function(PlayerEvent): void} listener Called with each event
+   * @param {SubscribeOptions} [options={}] Optional minimum milliseconds between position events (default 1000)
+   */
+  subscribe(listener: (event: PlayerEvent) => void, options: SubscribeOptions = {}) {
+    cordova.exec(
+      (event) => listener(event),
+      () => {},
+      SERVICE_NAME,
+      'subscribe',
+      [options]
+    );
+  }
+
+  /**
+   * Stop sending events to the listener passed to subscribe, Android only
+   *
+   * @returns {Promise<void>} Returns a promise that resolves after the listener is removed
+   */
+  unsubscribe() {
+    return new Promise<void>((resolve, reject) => {
+      cordova.exec(
+        () => resolve(),
+        () => reject(),
+        SERVICE_NAME,
+        'unsubscribe',
+        []
       );
     });
   }
@@ -10,6 +10,38 @@ var PlayerState;
 var ROILBackgroundMediaPlayer = /** @class */ (function () {
     function ROILBackgroundMediaPlayer() {
     }
+    /**
+     * Cancel the prefetch started by the last call to prefetch, Android only
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the prefetch is cancelled
+     */
+    ROILBackgroundMediaPlayer.prototype.cancelPrefetch = function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'cancelPrefetch', []);
+        });
+    };
+    /**
+     * Get the timings of the background player startup stages and hot paths, Android only
+     *
+     * @returns {Promise<PlayerMetrics>} Returns a promise that resolves with the sample count and the p50, p90, p99 and
+     * max durations in milliseconds of each stage, and the value of each counter
+     */
+    ROILBackgroundMediaPlayer.prototype.getMetrics = function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function (metrics) { return resolve(metrics); }, function () { return reject(); }, SERVICE_NAME, 'getMetrics', []);
+        });
+    };
+    /**
+     * Get the current position and state of the background media player without changing it, Android only
+     *
+     * @returns {Promise<PlayerPositionAndState>} Returns a promise that resolves with the current time and state of the
+     * background player
+     */
+    ROILBackgroundMediaPlayer.prototype.getPosition = function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function (positionAndState) { return resolve(positionAndState); }, function () { return reject(); }, SERVICE_NAME, 'getPosition', []);
+        });
+    };
     /**
      * Pause the background media player
      *
@@ -21,10 +53,23 @@ var ROILBackgroundMediaPlayer = /** @class */ (function () {
             cordova.exec(function (positionAndState) { return resolve(positionAndState); }, function () { return reject(); }, SERVICE_NAME, 'pause', []);
         });
     };
+    /**
+     * Pause a secondary session, Android only
+     *
+     * @param {string} sessionId Id of the session
+     *
+     * @returns {Promise<number>} Returns a promise that resolves with the current time of the session after it pauses
+     */
+    ROILBackgroundMediaPlayer.prototype.pauseSession = function (sessionId) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function (result) { return resolve(result.position); }, function () { return reject(); }, SERVICE_NAME, 'pauseSession', [sessionId]);
+        });
+    };
     /**
      * Play the background media player
      *
-     * @param {number} currentTime Current time for the foreground player to use to synchronize with the background player
+     * @param {number|null} currentTime Current time for the foreground player to use to synchronize with the background
+     * player, or null to play from the background player's position, such as the one restored by setMediaSource
      * @param {number} [playbackSpeed=1.0] Playback speed for the foreground player to use to synchronize with the
      * background player
      *
@@ -36,6 +81,77 @@ var ROILBackgroundMediaPlayer = /** @class */ (function () {
             cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'play', [currentTime, playbackSpeed]);
         });
     };
+    /**
+     * Play a secondary session alongside the background media player, Android only
+     *
+     * @param {string} sessionId Id of the session
+     * @param {number|null} [currentTime=null] Time to start from, or null to play from the session's position
+     *
+     * @returns {Promise<void>} Returns a promise that resolves when the session is told to play
+     */
+    ROILBackgroundMediaPlayer.prototype.playSession = function (sessionId, currentTime) {
+        if (currentTime === void 0) { currentTime = null; }
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'playSession', [sessionId, currentTime]);
+        });
+    };
+    /**
+     * Warm the start of media that is likely to be played next, and its image, in the background, Android only. Each
+     * call cancels the previous prefetch
+     *
+     * @param {PrefetchSource[]} sources Sources to warm with their optional imageUrl, most likely first
+     * @param {PrefetchOptions} [options={}] Optional bytes to cache per source (default 512 KB), bytes budget for the
+     * whole prefetch (default 4 MB) and number of sources warmed concurrently (default 2)
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the prefetch is started
+     */
+    ROILBackgroundMediaPlayer.prototype.prefetch = function (sources, options) {
+        if (options === void 0) { options = {}; }
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'prefetch', [sources, options]);
+        });
+    };
+    /**
+     * Stop a secondary session and release its player, Android only
+     *
+     * @param {string} sessionId Id of the session
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the session is released
+     */
+    ROILBackgroundMediaPlayer.prototype.releaseSession = function (sessionId) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'releaseSession', [sessionId]);
+        });
+    };
+    /**
+     * Set the catalogue that media browsers such as Android Auto can browse and play from, Android only. Nodes with a src
+     * are playable, nodes with children are browsable. Ids must differ among siblings and from their ancestors' ids
+     *
+     * @param {BrowseNode[]} nodes Nodes to show under the parent, with their own children
+     * @param {string} [parentId=null] Id of an already set node whose children are replaced, or null for the root
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after browsers are notified of the change
+     */
+    ROILBackgroundMediaPlayer.prototype.setBrowseTree = function (nodes, parentId) {
+        if (parentId === void 0) { parentId = null; }
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'setBrowseTree', [nodes, parentId]);
+        });
+    };
+    /**
+     * Set how much media the background player buffers before starting and while playing, Android only. Only the Media3
+     * engine applies it, from the next media source on
+     *
+     * @param {BufferingPolicy} policy Milliseconds of media to keep buffered at least and at most, and to buffer before
+     * starting and before resuming after a stall. Missing values keep their current setting
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the policy is passed to the background player
+     */
+    ROILBackgroundMediaPlayer.prototype.setBufferingPolicy = function (policy) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'setBufferingPolicy', [policy]);
+        });
+    };
     /**
      * Pass information about the media to the background player, needs to be called before calling play or pause to init
      * the player
@@ -43,14 +159,109 @@ var ROILBackgroundMediaPlayer = /** @class */ (function () {
      * @param {string} src Source for the media to be played
      * @param {string} [title=null] Optional title to be displayed on the lockscreen
      * @param {string} [imageUrl=null] Optional imageUrl for an image to be displayed on the lockscreen
+     * @param {boolean} [resume=false] Whether to start from the position saved when this source was last paused or left,
+     * Android only
      *
-     * @returns {Promise<void>} Returns a promise that resolves after background player is initialized
+     * @returns {Promise<number>} Returns a promise that resolves after background player is initialized, with the
+     * position in seconds it resumes from
      */
-    ROILBackgroundMediaPlayer.prototype.setMediaSource = function (src, title, imageUrl) {
+    ROILBackgroundMediaPlayer.prototype.setMediaSource = function (src, title, imageUrl, resume) {
         if (title === void 0) { title = null; }
         if (imageUrl === void 0) { imageUrl = null; }
+        if (resume === void 0) { resume = false; }
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function (result) { return resolve(result ? result.resumePosition : 0); }, function () { return reject(); }, SERVICE_NAME, 'setMediaSource', [src, title, imageUrl, resume]);
+        });
+    };
+    /**
+     * Replace the metadata of the current media shown on the lockscreen and to media controllers, Android only. The
+     * artwork is only loaded again if imageUrl changed, and nothing is republished if no field changed
+     *
+     * @param {Metadata} metadata Artist, title, album, duration in seconds and imageUrl of the media. Missing fields are
+     * cleared
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the metadata is passed to the background player
+     */
+    ROILBackgroundMediaPlayer.prototype.setMetadata = function (metadata) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'setMetadata', [metadata]);
+        });
+    };
+    /**
+     * Pass a list of media to the background player, Android only. The next item is buffered ahead so that it starts
+     * without a gap when the current one ends
+     *
+     * @param {QueueItem[]} items Sources with their optional title and imageUrl, in play order
+     * @param {number} [startIndex=0] Index of the item to prepare first
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the queue is passed to the background player
+     */
+    ROILBackgroundMediaPlayer.prototype.setQueue = function (items, startIndex) {
+        if (startIndex === void 0) { startIndex = 0; }
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'setQueue', [items, startIndex]);
+        });
+    };
+    /**
+     * Prepare media in a secondary session that plays alongside the background media player, such as a music bed or a
+     * preview clip, Android only. Secondary sessions have no lockscreen controls of their own and share the players left
+     * by the background media player out of ANDROID_MAX_PLAYERS, it uses two at most: when none is free, an idle
+     * session or a playing one with a lower priority gives up its player. Idle sessions are also released when the device
+     * runs low on memory, every session is paused when the background media player stops, and a completion event with
+     * the session id is sent when one ends
+     *
+     * @param {string} sessionId Id of the session, created if needed
+     * @param {string} src Source for the media to be played
+     * @param {number} [priority=0] Sessions with a higher priority keep their player over lower ones
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the session starts preparing the media
+     */
+    ROILBackgroundMediaPlayer.prototype.setSessionSource = function (sessionId, src, priority) {
+        if (priority === void 0) { priority = 0; }
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'setSessionSource', [sessionId, src, priority]);
+        });
+    };
+    /**
+     * Move the background player to the next item of the queue, Android only
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the skip is requested
+     */
+    ROILBackgroundMediaPlayer.prototype.skipToNext = function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'skipToNext', []);
+        });
+    };
+    /**
+     * Move the background player to the previous item of the queue, Android only
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the skip is requested
+     */
+    ROILBackgroundMediaPlayer.prototype.skipToPrevious = function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'skipToPrevious', []);
+        });
+    };
+    /**
+     * Listen to the events of the background player instead of polling it, Android only. Position events are sent
+     * while playing and are paused along with the app, state, buffering, completion and error events are sent as they
+     * happen. Each call replaces the previous listener
+     *
+     * @param {function(PlayerEvent): void} listener Called with each event
+     * @param {SubscribeOptions} [options={}] Optional minimum milliseconds between position events (default 1000)
+     */
+    ROILBackgroundMediaPlayer.prototype.subscribe = function (listener, options) {
+        if (options === void 0) { options = {}; }
+        cordova.exec(function (event) { return listener(event); }, function () { }, SERVICE_NAME, 'subscribe', [options]);
+    };
+    /**
+     * Stop sending events to the listener passed to subscribe, Android only
+     *
+     * @returns {Promise<void>} Returns a promise that resolves after the listener is removed
+     */
+    ROILBackgroundMediaPlayer.prototype.unsubscribe = function () {
         return new Promise(function (resolve, reject) {
-            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'setMediaSource', [src, title, imageUrl]);
+            cordova.exec(function () { return resolve(); }, function () { return reject(); }, SERVICE_NAME, 'unsubscribe', []);
         });
     };
     return ROILBackgroundMediaPlayer;